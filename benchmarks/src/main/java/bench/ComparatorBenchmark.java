@@ -0,0 +1,74 @@
+package bench;
+
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one comparison of two serialized map output keys, the call the sort and merge of the
+ * shuffle make O(n log n) times. Every record is compared with the record BATCH / 2 after it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(PipelineData.BATCH)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ComparatorBenchmark {
+    private Records step1Keys;
+    private Records step2Keys;
+    private Records step4Keys;
+    private RawComparator<?> text;
+    private RawComparator<?> taggedKey;
+    private RawComparator<?> step4;
+
+    @Setup
+    public void setup() throws Exception {
+        PipelineData data = PipelineData.get();
+        step1Keys = data.step1Sorted;
+        step2Keys = data.step2Sorted;
+        step4Keys = data.step4Sorted;
+        text = data.textComparator;
+        taggedKey = data.taggedKeyComparator;
+        // a new instance, WritableComparator keeps deserialization buffers
+        step4 = (RawComparator<?>) ReflectionUtils.newInstance(data.conf.getClassByName("Step4$Comparison"), data.conf);
+    }
+
+    private static int compareAll(RawComparator<?> comparator, Records keys) {
+        byte[] bytes = keys.data();
+        int n = keys.size(), half = n / 2, sum = 0;
+        for (int i = 0; i < n; i++) {
+            int j = (i + half) % n;
+            sum += comparator.compare(bytes, keys.keyStart(i), keys.keyLength(i), bytes, keys.keyStart(j), keys.keyLength(j));
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int step1Text() {
+        return compareAll(text, step1Keys);
+    }
+
+    @Benchmark
+    public int step2TaggedKey() {
+        return compareAll(taggedKey, step2Keys);
+    }
+
+    @Benchmark
+    public int step4Comparison() {
+        return compareAll(step4, step4Keys);
+    }
+}
@@ -0,0 +1,81 @@
+package bench;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.apache.hadoop.mapreduce.lib.map.WrappedMapper;
+import org.apache.hadoop.mapreduce.lib.reduce.WrappedReducer;
+import org.apache.hadoop.mapreduce.task.MapContextImpl;
+import org.apache.hadoop.mapreduce.task.ReduceContextImpl;
+
+import java.io.IOException;
+
+/**
+ * Mapper / Reducer contexts that read and write Records instead of files, so the tasks of the
+ * steps can run in one thread without a job runner, a spill or a shuffle.
+ */
+public class InMemoryContext {
+    private static final TaskAttemptID TASK = new TaskAttemptID("bench", 0, TaskType.MAP, 0, 0);
+
+    /**
+     * A context that reads the records of the reader and writes to output. Call reader.reset()
+     * before every Mapper.run.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public static <KI, VI, KO, VO> Mapper<KI, VI, KO, VO>.Context mapContext(Configuration conf, Records.Reader reader,
+                                                                           RecordWriter<Writable, Writable> output) {
+        MapContextImpl context = new MapContextImpl(conf, TASK, reader, output, null, new Reporter(), null);
+        return new WrappedMapper<KI, VI, KO, VO>().getMapContext(context);
+    }
+
+    /**
+     * A context that groups the (sorted) records of the iterator with the comparator and writes to
+     * output. The context starts reading the iterator as it is created, so create one for every
+     * Reducer.run.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public static <KI, VI, KO, VO> Reducer<KI, VI, KO, VO>.Context reduceContext(Configuration conf, Records input, Records.Iterator iterator,
+                                                                               RawComparator<?> comparator, RecordWriter<Writable, Writable> output)
+            throws IOException, InterruptedException {
+        Reporter reporter = new Reporter();
+        ReduceContextImpl context = new ReduceContextImpl(conf, TASK, iterator,
+                reporter.getCounter("bench", "keys"), reporter.getCounter("bench", "values"),
+                output, null, reporter, comparator, input.getKeyClass(), input.getValueClass());
+        return new WrappedReducer<KI, VI, KO, VO>().getReducerContext(context);
+    }
+
+    private static class Reporter extends StatusReporter {
+        private final Counters counters = new Counters();
+
+        @Override
+        public Counter getCounter(Enum<?> name) {
+            return counters.findCounter(name);
+        }
+
+        @Override
+        public Counter getCounter(String group, String name) {
+            return counters.findCounter(group, name);
+        }
+
+        @Override
+        public void progress() {
+        }
+
+        @Override
+        public float getProgress() {
+            return 0;
+        }
+
+        @Override
+        public void setStatus(String status) {
+        }
+    }
+}
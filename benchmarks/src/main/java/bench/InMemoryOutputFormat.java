@@ -0,0 +1,41 @@
+package bench;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.OutputFormat;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+import java.io.IOException;
+
+/**
+ * Output format of the MultipleOutputs named outputs (the stats of Step2), every record is
+ * written to the SINK records.
+ */
+public class InMemoryOutputFormat extends OutputFormat<Writable, Writable> {
+    public static final Records SINK = new Records(Writable.class, Writable.class);
+
+    @Override
+    public RecordWriter<Writable, Writable> getRecordWriter(TaskAttemptContext context) {
+        return new RecordWriter<Writable, Writable>() {
+            @Override
+            public void write(Writable key, Writable value) throws IOException {
+                SINK.write(key, value);
+            }
+
+            @Override
+            public void close(TaskAttemptContext context) {
+            }
+        };
+    }
+
+    @Override
+    public void checkOutputSpecs(JobContext context) {
+    }
+
+    @Override
+    public OutputCommitter getOutputCommitter(TaskAttemptContext context) {
+        return null;
+    }
+}
@@ -0,0 +1,118 @@
+package bench;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per input record of every mapper, combiner and reducer of the pipeline, run through the
+ * in-memory contexts over PipelineData.BATCH records (the output is serialized, as in a real task).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(PipelineData.BATCH)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MapReduceBenchmark {
+    private MapTask step1Map;
+    private MapTask step1MapInMapperCombining;
+    private ReduceTask step1Combiner;
+    private ReduceTask step1Reduce;
+    private MapTask step2Map;
+    private ReduceTask step2Combiner;
+    private ReduceTask step2Reduce;
+    private MapTask step3Map;
+    private ReduceTask step3Reduce;
+    private MapTask step4Map;
+    private ReduceTask step4Reduce;
+
+    @Setup
+    public void setup() throws Exception {
+        PipelineData data = PipelineData.get();
+        Configuration conf = data.conf;
+        Configuration inMapper = new Configuration(conf);
+        inMapper.setBoolean("step1.in-mapper-combining", true);
+        step1Map = new MapTask(conf, "Step1$Map", data.corpus, Text.class, Text.class);
+        step1MapInMapperCombining = new MapTask(inMapper, "Step1$Map", data.corpus, Text.class, Text.class);
+        step1Combiner = new ReduceTask(conf, "Step1$Combiner", data.step1Sorted, data.textComparator, Text.class, Text.class);
+        step1Reduce = new ReduceTask(conf, "Step1$Reduce", data.step1Sorted, data.textComparator, Text.class, data.counts);
+        step2Map = new MapTask(conf, "Step2$Map", data.step1Output, data.taggedKey, LongWritable.class);
+        step2Combiner = new ReduceTask(conf, "Step2$Combiner", data.step2Sorted, data.taggedKeyComparator, data.taggedKey, LongWritable.class);
+        step2Reduce = new ReduceTask(conf, "Step2$Reduce", data.step2Sorted, data.taggedKeyComparator, data.taggedKey, LongWritable.class);
+        step3Map = new MapTask(conf, "Step3$Map", data.step2Output, data.taggedKey, LongWritable.class);
+        step3Reduce = new ReduceTask(conf, "Step3$Reduce", data.step3Sorted, data.taggedKeyComparator, Text.class, Text.class);
+        step4Map = new MapTask(conf, "Step4$Map", data.step3Output, Text.class, Text.class);
+        step4Reduce = new ReduceTask(conf, "Step4$Reduce", data.step4Sorted, data.step4Comparator, Text.class, Text.class);
+    }
+
+    @Benchmark
+    public Records step1Map() throws Exception {
+        return step1Map.run();
+    }
+
+    @Benchmark
+    public Records step1MapInMapperCombining() throws Exception {
+        return step1MapInMapperCombining.run();
+    }
+
+    @Benchmark
+    public Records step1Combiner() throws Exception {
+        return step1Combiner.run();
+    }
+
+    @Benchmark
+    public Records step1Reduce() throws Exception {
+        return step1Reduce.run();
+    }
+
+    @Benchmark
+    public Records step2Map() throws Exception {
+        return step2Map.run();
+    }
+
+    @Benchmark
+    public Records step2Combiner() throws Exception {
+        return step2Combiner.run();
+    }
+
+    @Benchmark
+    public Records step2Reduce() throws Exception {
+        InMemoryOutputFormat.SINK.clear();
+        return step2Reduce.run();
+    }
+
+    @Benchmark
+    public Records step3Map() throws Exception {
+        return step3Map.run();
+    }
+
+    @Benchmark
+    public Records step3Reduce() throws Exception {
+        return step3Reduce.run();
+    }
+
+    @Benchmark
+    public Records step4Map() throws Exception {
+        return step4Map.run();
+    }
+
+    @Benchmark
+    public Records step4Reduce() throws Exception {
+        return step4Reduce.run();
+    }
+}
@@ -0,0 +1,39 @@
+package bench;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import java.io.IOException;
+
+/**
+ * One mapper of a step (created by name, the mappers of the steps are private) over in-memory records.
+ */
+public class MapTask {
+    private final Mapper<Object, Object, Object, Object> mapper;
+    private final Records.Reader reader;
+    private final Records output;
+    private final Mapper<Object, Object, Object, Object>.Context context;
+
+    @SuppressWarnings("unchecked")
+    public MapTask(Configuration conf, String mapperClass, Records input,
+                   Class<? extends Writable> outputKeyClass, Class<? extends Writable> outputValueClass) throws ClassNotFoundException {
+        mapper = (Mapper<Object, Object, Object, Object>) ReflectionUtils.newInstance(conf.getClassByName(mapperClass), conf);
+        reader = input.reader(conf);
+        output = new Records(outputKeyClass, outputValueClass);
+        context = InMemoryContext.mapContext(conf, reader, output);
+    }
+
+    /**
+     * Runs setup, map over every input record and cleanup.
+     *
+     * @return the map output (cleared by the next run)
+     */
+    public Records run() throws IOException, InterruptedException {
+        reader.reset();
+        output.clear();
+        mapper.run(context);
+        return output;
+    }
+}
@@ -0,0 +1,102 @@
+package bench;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of getPartition for every map output record of a step.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(PipelineData.BATCH)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PartitionBenchmark {
+    @Param({"32"})
+    public int reducers;
+
+    private Writable[][] step1;
+    private Writable[][] step2;
+    private Writable[][] step3;
+    private Writable[][] step4;
+    private Partitioner<Writable, Writable> step1Partition;
+    private Partitioner<Writable, Writable> step2Partition;
+    private Partitioner<Writable, Writable> step3Partition;
+    private Partitioner<Writable, Writable> step4Partition;
+
+    @Setup
+    public void setup() throws Exception {
+        PipelineData data = PipelineData.get();
+        Configuration conf = data.conf;
+        step1 = deserialize(conf, data.step1Sorted);
+        step2 = deserialize(conf, data.step2Sorted);
+        step3 = deserialize(conf, data.step3Sorted);
+        step4 = deserialize(conf, data.step4Sorted);
+        step1Partition = partitioner(conf, "Step1$Partition");
+        step2Partition = partitioner(conf, "Step2$Partition");
+        step3Partition = partitioner(conf, "Step3$Partition");
+        step4Partition = partitioner(conf, "Step4$Partition");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Partitioner<Writable, Writable> partitioner(Configuration conf, String name) throws ClassNotFoundException {
+        return (Partitioner<Writable, Writable>) ReflectionUtils.newInstance(conf.getClassByName(name), conf);
+    }
+
+    /**
+     * The records as objects - getPartition is called before the record is serialized.
+     */
+    private static Writable[][] deserialize(Configuration conf, Records records) throws Exception {
+        Writable[][] pairs = new Writable[records.size()][];
+        Records.Reader reader = records.reader(conf);
+        for (int i = 0; reader.nextKeyValue(); i++)
+            pairs[i] = new Writable[]{WritableUtils.clone(reader.getCurrentKey(), conf), WritableUtils.clone(reader.getCurrentValue(), conf)};
+        return pairs;
+    }
+
+    private int partitionAll(Partitioner<Writable, Writable> partitioner, Writable[][] pairs) {
+        int sum = 0;
+        for (Writable[] pair : pairs)
+            sum += partitioner.getPartition(pair[0], pair[1], reducers);
+        return sum;
+    }
+
+    @Benchmark
+    public int step1() {
+        return partitionAll(step1Partition, step1);
+    }
+
+    @Benchmark
+    public int step2() {
+        return partitionAll(step2Partition, step2);
+    }
+
+    @Benchmark
+    public int step3() {
+        return partitionAll(step3Partition, step3);
+    }
+
+    @Benchmark
+    public int step4() {
+        return partitionAll(step4Partition, step4);
+    }
+}
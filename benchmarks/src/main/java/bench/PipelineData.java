@@ -0,0 +1,119 @@
+package bench;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import java.io.IOException;
+
+/**
+ * The input of every task of the pipeline, computed once per JVM by running Step1 - Step4 in memory
+ * over a synthetic corpus (SampleCorpus of the main artifact). Every input holds exactly BATCH records, reducer inputs are sorted with
+ * the sort comparator of their job.
+ */
+public class PipelineData {
+    public static final int BATCH = 1 << 16;
+
+    private static PipelineData instance;
+
+    public final Configuration conf;
+    public final Class<? extends Writable> taggedKey;
+    public final Class<? extends Writable> counts;
+    public final RawComparator<?> textComparator;
+    public final RawComparator<?> taggedKeyComparator;
+    public final RawComparator<?> step4Comparator;
+
+    public Records corpus;       // Step1.Map     - LongWritable / Text line
+    public Records step1Sorted;  // Step1.Reduce  - Text / Text
+    public Records step1Output;  // Step2.Map     - Text / CountsWritable
+    public Records step2Sorted;  // Step2.Reduce  - TaggedKey / LongWritable
+    public Records step2Output;  // Step3.Map     - TaggedKey / LongWritable (stats and 3-grams)
+    public Records step3Sorted;  // Step3.Reduce  - TaggedKey / LongWritable
+    public Records step3Output;  // Step4.Map     - Text / Text
+    public Records step4Sorted;  // Step4.Reduce  - Text / Text
+
+    // The complete map outputs, the reducer inputs are sorted from their first BATCH records
+    // like a map output buffer is sorted before a spill
+    private Records step1MapOutput;
+    private Records step2MapOutput;
+    private Records step3MapOutput;
+    private Records step4MapOutput;
+
+    public static synchronized PipelineData get() throws Exception {
+        if (instance == null)
+            instance = new PipelineData();
+        return instance;
+    }
+
+    @SuppressWarnings("unchecked")
+    private PipelineData() throws Exception {
+        Job job = Job.getInstance(new Configuration());
+        conf = job.getConfiguration();
+        taggedKey = (Class<? extends Writable>) conf.getClassByName("TaggedKey");
+        counts = (Class<? extends Writable>) conf.getClassByName("CountsWritable");
+        // Step2 writes its statistics to the named output "stats"
+        MultipleOutputs.addNamedOutput(job, "stats", InMemoryOutputFormat.class, taggedKey, LongWritable.class);
+        textComparator = WritableComparator.get(Text.class);
+        taggedKeyComparator = (RawComparator<?>) ReflectionUtils.newInstance(conf.getClassByName("TaggedKey$Comparator"), conf);
+        step4Comparator = (RawComparator<?>) ReflectionUtils.newInstance(conf.getClassByName("Step4$Comparison"), conf);
+
+        for (int lines = 8 * BATCH; ; lines *= 2) {
+            build(corpus(lines));
+            if (step1Output.size() >= BATCH && step3Output.size() >= BATCH)
+                break;
+        }
+        corpus = corpus.head(BATCH);
+        step1Sorted = step1MapOutput.head(BATCH).sort(textComparator);
+        step1Output = step1Output.head(BATCH);
+        step2Sorted = step2MapOutput.head(BATCH).sort(taggedKeyComparator);
+        step2Output = step2Output.head(BATCH);
+        step3Sorted = step3MapOutput.head(BATCH).sort(taggedKeyComparator);
+        step3Output = step3Output.head(BATCH);
+        step4Sorted = step4MapOutput.head(BATCH).sort(step4Comparator);
+    }
+
+    /**
+     * The first lines of the SampleCorpus of 50000 words (Zipf exponent 1, 10% stop words, seed 42).
+     */
+    private Records corpus(int lines) throws Exception {
+        Class<?> sampleCorpus = conf.getClassByName("SampleCorpus");
+        Object sample = sampleCorpus.getConstructor(int.class, double.class, double.class, long.class).newInstance(50000, 1.0, 0.1, 42L);
+        Records records = new Records(LongWritable.class, Text.class);
+        sampleCorpus.getMethod("write", long.class, int.class, RecordWriter.class).invoke(sample, (long) lines, 3, records);
+        return records;
+    }
+
+    private void build(Records lines) throws Exception {
+        corpus = lines;
+        step1MapOutput = copy(new MapTask(conf, "Step1$Map", corpus, Text.class, Text.class).run());
+        step1Output = reduce("Step1$Reduce", step1MapOutput.sort(textComparator), textComparator, Text.class, counts);
+        step2MapOutput = copy(new MapTask(conf, "Step2$Map", step1Output, taggedKey, LongWritable.class).run());
+        InMemoryOutputFormat.SINK.clear();
+        Records trigrams = reduce("Step2$Reduce", step2MapOutput.sort(taggedKeyComparator), taggedKeyComparator, taggedKey, LongWritable.class);
+        step2Output = new Records(taggedKey, LongWritable.class);
+        step2Output.addAll(InMemoryOutputFormat.SINK);
+        step2Output.addAll(trigrams);
+        InMemoryOutputFormat.SINK.clear();
+        step3MapOutput = copy(new MapTask(conf, "Step3$Map", step2Output, taggedKey, LongWritable.class).run());
+        step3Output = reduce("Step3$Reduce", step3MapOutput.sort(taggedKeyComparator), taggedKeyComparator, Text.class, Text.class);
+        step4MapOutput = copy(new MapTask(conf, "Step4$Map", step3Output, Text.class, Text.class).run());
+    }
+
+    private Records reduce(String reducer, Records sorted, RawComparator<?> comparator,
+                           Class<? extends Writable> keyClass, Class<? extends Writable> valueClass) throws Exception {
+        return copy(new ReduceTask(conf, reducer, sorted, comparator, keyClass, valueClass).run());
+    }
+
+    private static Records copy(Records records) throws IOException {
+        Records copy = new Records(records.getKeyClass(), records.getValueClass());
+        copy.addAll(records);
+        return copy;
+    }
+}
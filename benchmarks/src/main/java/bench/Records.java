@@ -0,0 +1,258 @@
+package bench;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.RawKeyValueIterator;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.Progress;
+import org.apache.hadoop.util.QuickSort;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Serialized key / value records kept in one buffer, like a map output buffer.
+ * <p>
+ * As a RecordWriter it is the in-memory sink of a task, and it can be read back as the input of
+ * a mapper (reader) or, once sorted, of a reducer (iterator).
+ */
+public class Records extends RecordWriter<Writable, Writable> {
+    private final Class<? extends Writable> keyClass;
+    private final Class<? extends Writable> valueClass;
+    private final DataOutputBuffer data = new DataOutputBuffer();
+    private int[] starts = new int[1024];
+    private int[] keyEnds = new int[1024];
+    private int[] ends = new int[1024];
+    private int size;
+
+    public Records(Class<? extends Writable> keyClass, Class<? extends Writable> valueClass) {
+        this.keyClass = keyClass;
+        this.valueClass = valueClass;
+    }
+
+    public Class<? extends Writable> getKeyClass() {
+        return keyClass;
+    }
+
+    public Class<? extends Writable> getValueClass() {
+        return valueClass;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long bytes() {
+        return data.getLength();
+    }
+
+    @Override
+    public void write(Writable key, Writable value) throws IOException {
+        if (size == starts.length) {
+            starts = Arrays.copyOf(starts, size * 2);
+            keyEnds = Arrays.copyOf(keyEnds, size * 2);
+            ends = Arrays.copyOf(ends, size * 2);
+        }
+        starts[size] = data.getLength();
+        key.write(data);
+        keyEnds[size] = data.getLength();
+        value.write(data);
+        ends[size++] = data.getLength();
+    }
+
+    @Override
+    public void close(TaskAttemptContext context) {
+    }
+
+    /**
+     * Appends all the records of another Records.
+     */
+    public void addAll(Records other) throws IOException {
+        for (int i = 0; i < other.size; i++)
+            other.copyTo(i, this);
+    }
+
+    /**
+     * Removes the records but keeps the allocated buffer.
+     */
+    public void clear() {
+        data.reset();
+        size = 0;
+    }
+
+    /**
+     * A copy of the first n records.
+     */
+    public Records head(int n) throws IOException {
+        Records head = new Records(keyClass, valueClass);
+        for (int i = 0; i < Math.min(n, size); i++)
+            copyTo(i, head);
+        return head;
+    }
+
+    /**
+     * Sorts the records by their serialized keys, as the shuffle does before a reducer.
+     */
+    public Records sort(RawComparator<?> comparator) throws IOException {
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++)
+            order[i] = i;
+        byte[] bytes = data.getData();
+        // Hadoop's QuickSort, like MapOutputBuffer - TimSort rejects comparators that never return 0 (Step4)
+        new QuickSort().sort(new IndexedSortable() {
+            @Override
+            public int compare(int a, int b) {
+                int i = order[a], j = order[b];
+                return comparator.compare(bytes, starts[i], keyEnds[i] - starts[i], bytes, starts[j], keyEnds[j] - starts[j]);
+            }
+
+            @Override
+            public void swap(int a, int b) {
+                int t = order[a];
+                order[a] = order[b];
+                order[b] = t;
+            }
+        }, 0, size);
+        Records sorted = new Records(keyClass, valueClass);
+        for (int i : order)
+            copyTo(i, sorted);
+        return sorted;
+    }
+
+    private void copyTo(int i, Records target) throws IOException {
+        if (target.size == target.starts.length) {
+            target.starts = Arrays.copyOf(target.starts, target.size * 2);
+            target.keyEnds = Arrays.copyOf(target.keyEnds, target.size * 2);
+            target.ends = Arrays.copyOf(target.ends, target.size * 2);
+        }
+        int start = target.data.getLength();
+        target.data.write(data.getData(), starts[i], ends[i] - starts[i]);
+        target.starts[target.size] = start;
+        target.keyEnds[target.size] = start + keyEnds[i] - starts[i];
+        target.ends[target.size++] = start + ends[i] - starts[i];
+    }
+
+    /**
+     * The serialized records, the key of record i is at keyStart(i) (used by the comparator benchmarks).
+     */
+    public byte[] data() {
+        return data.getData();
+    }
+
+    public int keyStart(int i) {
+        return starts[i];
+    }
+
+    public int keyLength(int i) {
+        return keyEnds[i] - starts[i];
+    }
+
+    /**
+     * Deserializes the records, in order, as the input of a mapper.
+     */
+    public Reader reader(Configuration conf) {
+        return new Reader(conf);
+    }
+
+    /**
+     * Raw records, in order, as the (already sorted) input of a reducer.
+     */
+    public Iterator iterator() {
+        return new Iterator();
+    }
+
+    public class Reader extends RecordReader<Writable, Writable> {
+        private final Writable key;
+        private final Writable value;
+        private final DataInputBuffer in = new DataInputBuffer();
+        private int next;
+
+        private Reader(Configuration conf) {
+            key = ReflectionUtils.newInstance(keyClass, conf);
+            value = ReflectionUtils.newInstance(valueClass, conf);
+        }
+
+        public void reset() {
+            next = 0;
+        }
+
+        @Override
+        public void initialize(InputSplit split, TaskAttemptContext context) {
+        }
+
+        @Override
+        public boolean nextKeyValue() throws IOException {
+            if (next == size)
+                return false;
+            in.reset(data.getData(), starts[next], ends[next] - starts[next]);
+            key.readFields(in);
+            value.readFields(in);
+            next++;
+            return true;
+        }
+
+        @Override
+        public Writable getCurrentKey() {
+            return key;
+        }
+
+        @Override
+        public Writable getCurrentValue() {
+            return value;
+        }
+
+        @Override
+        public float getProgress() {
+            return size == 0 ? 1 : (float) next / size;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    public class Iterator implements RawKeyValueIterator {
+        private final DataInputBuffer key = new DataInputBuffer();
+        private final DataInputBuffer value = new DataInputBuffer();
+        private final Progress progress = new Progress();
+        private int current = -1;
+
+        public void reset() {
+            current = -1;
+        }
+
+        @Override
+        public DataInputBuffer getKey() {
+            key.reset(data.getData(), starts[current], keyEnds[current] - starts[current]);
+            return key;
+        }
+
+        @Override
+        public DataInputBuffer getValue() {
+            value.reset(data.getData(), keyEnds[current], ends[current] - keyEnds[current]);
+            return value;
+        }
+
+        @Override
+        public boolean next() {
+            return ++current < size;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public Progress getProgress() {
+            return progress;
+        }
+    }
+}
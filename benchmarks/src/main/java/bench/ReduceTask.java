@@ -0,0 +1,44 @@
+package bench;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import java.io.IOException;
+
+/**
+ * One reducer (or combiner) of a step over in-memory records that are already sorted.
+ */
+public class ReduceTask {
+    private final Configuration conf;
+    private final Reducer<Object, Object, Object, Object> reducer;
+    private final Records input;
+    private final Records.Iterator iterator;
+    private final RawComparator<?> comparator;
+    private final Records output;
+
+    @SuppressWarnings("unchecked")
+    public ReduceTask(Configuration conf, String reducerClass, Records sortedInput, RawComparator<?> comparator,
+                      Class<? extends Writable> outputKeyClass, Class<? extends Writable> outputValueClass) throws ClassNotFoundException {
+        this.conf = conf;
+        reducer = (Reducer<Object, Object, Object, Object>) ReflectionUtils.newInstance(conf.getClassByName(reducerClass), conf);
+        input = sortedInput;
+        iterator = sortedInput.iterator();
+        this.comparator = comparator;
+        output = new Records(outputKeyClass, outputValueClass);
+    }
+
+    /**
+     * Runs setup, reduce over every group of the input and cleanup.
+     *
+     * @return the reduce output (cleared by the next run)
+     */
+    public Records run() throws IOException, InterruptedException {
+        iterator.reset();
+        output.clear();
+        reducer.run(InMemoryContext.reduceContext(conf, input, iterator, comparator, output));
+        return output;
+    }
+}
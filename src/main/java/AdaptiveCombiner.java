@@ -0,0 +1,107 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Adaptive in-mapper combining of the records whose values are summed - the word counts of Step0 and
+ * the <N split r> / <T split r> statistics of Step2 and Step23 - used instead of a framework combiner.
+ * <p>
+ * A framework combiner runs on every spill over all the map output, and in Step2 most of it is 3-grams
+ * that it can only copy - deserialized, compared and serialized again for nothing. Here the mapper
+ * adds only the records of the classes that combine, the other ones go straight to the map output.
+ * The sums are kept in a hash map of at most MAX_KEYS keys, which is flushed to the map output when
+ * it is full and on cleanup. When a full flush reduced the records it got by less than MIN_REDUCTION
+ * (1 - records out / records in), combining does not pay for this task and the records are written
+ * through from then on. The records in and out of every flush and the decisions are counted (Counter).
+ */
+public class AdaptiveCombiner<K extends Writable> {
+    // Combine in the mapper instead of running a framework combiner (default true)
+    public static final String ENABLED = "pipeline.adaptive-combiner";
+    // Keys summed before the map is flushed (default 100000)
+    public static final String MAX_KEYS = "pipeline.adaptive-combiner.max-keys";
+    // Stop combining after a full flush that reduced the records by less than this (default 0.5)
+    public static final String MIN_REDUCTION = "pipeline.adaptive-combiner.min-reduction";
+
+    public enum Counter {
+        INPUT_RECORDS,  // records added to the sums
+        OUTPUT_RECORDS, // sums written by the flushes
+        FLUSHES,        // flushes, full and on cleanup
+        PASSED_RECORDS, // records written through after combining was switched off
+        DISABLED_TASKS  // tasks that switched combining off
+    }
+
+    private final TaskInputOutputContext<?, ?, K, LongWritable> context;
+    private final int maxKeys;
+    private final double minReduction;
+    private final HashMap<K, long[]> sums = new HashMap<>();
+    private final LongWritable outValue = new LongWritable();
+    private boolean disabled = false;
+    // Records added since the last flush
+    private long added = 0;
+    private long input = 0, output = 0, flushes = 0, passed = 0;
+
+    public AdaptiveCombiner(TaskInputOutputContext<?, ?, K, LongWritable> context) {
+        Configuration conf = context.getConfiguration();
+        this.context = context;
+        maxKeys = conf.getInt(MAX_KEYS, 100000);
+        minReduction = conf.getDouble(MIN_REDUCTION, 0.5);
+    }
+
+    public static boolean isEnabled(Configuration conf) {
+        return conf.getBoolean(ENABLED, true);
+    }
+
+    /**
+     * Adds value to the sum of key (copied when it is new), or writes it through when combining is off.
+     */
+    public void add(K key, long value) throws IOException, InterruptedException {
+        if (disabled) {
+            outValue.set(value);
+            context.write(key, outValue);
+            passed++;
+            return;
+        }
+        added++;
+        long[] sum = sums.get(key);
+        if (sum != null) {
+            sum[0] += value;
+            return;
+        }
+        sums.put(WritableUtils.clone(key, context.getConfiguration()), new long[]{value});
+        if (sums.size() >= maxKeys)
+            flush(true);
+    }
+
+    /**
+     * Writes the sums and adds the counters - on cleanup.
+     */
+    public void close() throws IOException, InterruptedException {
+        flush(false);
+        context.getCounter(Counter.INPUT_RECORDS).increment(input);
+        context.getCounter(Counter.OUTPUT_RECORDS).increment(output);
+        context.getCounter(Counter.FLUSHES).increment(flushes);
+        context.getCounter(Counter.PASSED_RECORDS).increment(passed);
+        context.getCounter(Counter.DISABLED_TASKS).increment(disabled ? 1 : 0);
+    }
+
+    private void flush(boolean full) throws IOException, InterruptedException {
+        for (Map.Entry<K, long[]> sum : sums.entrySet()) {
+            outValue.set(sum.getValue()[0]);
+            context.write(sum.getKey(), outValue);
+        }
+        input += added;
+        output += sums.size();
+        flushes++;
+        // Only a full map measures the reduction - the cleanup flush holds whatever is left
+        if (full && 1 - (double) sums.size() / added < minReduction)
+            disabled = true;
+        sums.clear();
+        added = 0;
+    }
+}
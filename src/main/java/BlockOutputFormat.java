@@ -0,0 +1,285 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.io.compress.GzipCodec;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Output format for step outputs on S3 - writes large blocks in parallel instead of one stream per
+ * task, and commits them with ManifestCommitter instead of renaming them.
+ * <p>
+ * The records are buffered into a block in memory, compressed like the output of the job. A full
+ * block is uploaded as a file of its own (name-attempt-block, e.g. part-r-00000-0-00001) by a pool
+ * of UPLOAD_THREADS threads while the task goes on writing. At most UPLOAD_THREADS blocks wait for
+ * their upload, so a task holds at most UPLOAD_THREADS + 1 blocks. Every block is a complete text file
+ * or SequenceFile, so the next step reads the blocks like any part file.
+ * <p>
+ * TextFormat and SequenceFormat write what TextOutputFormat and SequenceFileOutputFormat write.
+ */
+public abstract class BlockOutputFormat<K, V> extends FileOutputFormat<K, V> {
+    // Size of a block, after compression (default 32 MB)
+    public static final String BLOCK_SIZE = "pipeline.output.block-size";
+    // Threads that upload the blocks of a writer (default 4)
+    public static final String UPLOAD_THREADS = "pipeline.output.upload-threads";
+
+    private ManifestCommitter committer;
+
+    /**
+     * The records of one block, serialized into its buffer.
+     */
+    protected abstract static class Block<K, V> {
+        protected final DataOutputBuffer buffer = new DataOutputBuffer();
+
+        public abstract void write(K key, V value) throws IOException;
+
+        /**
+         * Writes everything that is still buffered, the buffer holds a complete file then.
+         */
+        public abstract void finish() throws IOException;
+    }
+
+    protected abstract Block<K, V> newBlock(TaskAttemptContext context) throws IOException;
+
+    protected abstract String extension(TaskAttemptContext context);
+
+    @Override
+    public synchronized OutputCommitter getOutputCommitter(TaskAttemptContext context) {
+        if (committer == null)
+            committer = new ManifestCommitter(getOutputPath(context));
+        return committer;
+    }
+
+    @Override
+    public RecordWriter<K, V> getRecordWriter(TaskAttemptContext context) {
+        return new BlockWriter(context);
+    }
+
+    private class BlockWriter extends RecordWriter<K, V> {
+        private final TaskAttemptContext context;
+        private final Path output;
+        private final FileSystem fs;
+        // part-r-00000, stats-r-00000 ...
+        private final String name;
+        private final String extension;
+        private final long blockSize;
+        private final ExecutorService uploader;
+        private final Semaphore waiting;
+        private final List<Future<?>> uploads = new ArrayList<>();
+        // The files of the writer - "name \t length" lines
+        private final StringBuilder listing = new StringBuilder();
+        private Block<K, V> block;
+        private int blocks = 0;
+
+        BlockWriter(TaskAttemptContext context) {
+            Configuration conf = context.getConfiguration();
+            this.context = context;
+            output = getOutputPath(context);
+            try {
+                fs = output.getFileSystem(conf);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            name = getUniqueFile(context, getOutputName(context), "");
+            extension = extension(context);
+            blockSize = conf.getLong(BLOCK_SIZE, 32L * 1024 * 1024);
+            int threads = conf.getInt(UPLOAD_THREADS, 4);
+            uploader = Executors.newFixedThreadPool(threads);
+            waiting = new Semaphore(threads);
+        }
+
+        @Override
+        public void write(K key, V value) throws IOException {
+            if (block == null)
+                block = newBlock(context);
+            block.write(key, value);
+            if (block.buffer.getLength() >= blockSize)
+                upload();
+        }
+
+        /**
+         * Hands the block to the uploader, blocks while UPLOAD_THREADS blocks wait for their upload.
+         */
+        private void upload() throws IOException {
+            block.finish();
+            DataOutputBuffer buffer = block.buffer;
+            block = null;
+            Path file = new Path(output, String.format("%s-%d-%05d%s", name, context.getTaskAttemptID().getId(), blocks++, extension));
+            try {
+                waiting.acquire();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for an upload");
+            }
+            checkUploads(false);
+            // Listed before its upload starts, so an aborted attempt or job finds every block it has to delete
+            listing.append(file.getName()).append('\t').append(buffer.getLength()).append('\n');
+            try (FSDataOutputStream out = fs.create(ManifestCommitter.listing(output, context, name), true)) {
+                out.write(listing.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            uploads.add(uploader.submit(() -> {
+                try (FSDataOutputStream out = fs.create(file, true)) {
+                    out.write(buffer.getData(), 0, buffer.getLength());
+                } finally {
+                    waiting.release();
+                }
+                return null;
+            }));
+        }
+
+        /**
+         * Throws the error of a failed upload - of any upload, or of the ones that are done.
+         */
+        private void checkUploads(boolean wait) throws IOException {
+            for (Future<?> upload : uploads) {
+                if (!wait && !upload.isDone())
+                    continue;
+                try {
+                    upload.get();
+                } catch (ExecutionException e) {
+                    throw new IOException("Upload of a block failed", e.getCause());
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while waiting for an upload");
+                }
+            }
+        }
+
+        @Override
+        public void close(TaskAttemptContext context) throws IOException {
+            try {
+                if (block != null)
+                    upload();
+                checkUploads(true);
+            } finally {
+                uploader.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * "key \t value" lines like TextOutputFormat, compressed with the output codec of the job.
+     */
+    public static class TextFormat<K, V> extends BlockOutputFormat<K, V> {
+        private static final byte[] NEWLINE = "\n".getBytes(StandardCharsets.UTF_8);
+
+        @Override
+        protected Block<K, V> newBlock(TaskAttemptContext context) throws IOException {
+            Configuration conf = context.getConfiguration();
+            byte[] separator = conf.get(TextOutputFormat.SEPERATOR, "\t").getBytes(StandardCharsets.UTF_8);
+            CompressionCodec codec = codec(context);
+            Compressor compressor = codec == null ? null : CodecPool.getCompressor(codec, conf);
+            return new Block<K, V>() {
+                private final CompressionOutputStream out = codec == null ? null : codec.createOutputStream(buffer, compressor);
+
+                @Override
+                public void write(K key, V value) throws IOException {
+                    boolean hasKey = key != null && !(key instanceof NullWritable);
+                    boolean hasValue = value != null && !(value instanceof NullWritable);
+                    if (hasKey)
+                        write(key);
+                    if (hasKey && hasValue)
+                        write(separator, separator.length);
+                    if (hasValue)
+                        write(value);
+                    write(NEWLINE, NEWLINE.length);
+                }
+
+                private void write(Object o) throws IOException {
+                    if (o instanceof Text)
+                        write(((Text) o).getBytes(), ((Text) o).getLength());
+                    else {
+                        byte[] bytes = o.toString().getBytes(StandardCharsets.UTF_8);
+                        write(bytes, bytes.length);
+                    }
+                }
+
+                private void write(byte[] bytes, int length) throws IOException {
+                    if (out == null)
+                        buffer.write(bytes, 0, length);
+                    else
+                        out.write(bytes, 0, length);
+                }
+
+                @Override
+                public void finish() throws IOException {
+                    if (out != null) {
+                        out.finish();
+                        CodecPool.returnCompressor(compressor);
+                    }
+                }
+            };
+        }
+
+        @Override
+        protected String extension(TaskAttemptContext context) {
+            CompressionCodec codec = codec(context);
+            return codec == null ? "" : codec.getDefaultExtension();
+        }
+
+        private static CompressionCodec codec(TaskAttemptContext context) {
+            if (!getCompressOutput(context))
+                return null;
+            return ReflectionUtils.newInstance(getOutputCompressorClass(context, GzipCodec.class), context.getConfiguration());
+        }
+    }
+
+    /**
+     * SequenceFiles of the output key and value classes, compressed like SequenceFileOutputFormat.
+     */
+    public static class SequenceFormat<K, V> extends BlockOutputFormat<K, V> {
+        @Override
+        protected Block<K, V> newBlock(TaskAttemptContext context) throws IOException {
+            Configuration conf = context.getConfiguration();
+            boolean compress = getCompressOutput(context);
+            SequenceFile.CompressionType type = compress ? SequenceFileOutputFormat.getOutputCompressionType(context) : SequenceFile.CompressionType.NONE;
+            CompressionCodec codec = compress ? ReflectionUtils.newInstance(getOutputCompressorClass(context, DefaultCodec.class), conf) : null;
+            return new Block<K, V>() {
+                private final SequenceFile.Writer writer = SequenceFile.createWriter(conf,
+                        SequenceFile.Writer.stream(new FSDataOutputStream(buffer, null)),
+                        SequenceFile.Writer.keyClass(context.getOutputKeyClass()),
+                        SequenceFile.Writer.valueClass(context.getOutputValueClass()),
+                        SequenceFile.Writer.compression(type, codec));
+
+                @Override
+                public void write(K key, V value) throws IOException {
+                    writer.append(key, value);
+                }
+
+                @Override
+                public void finish() throws IOException {
+                    writer.close(); // writes the last compressed block, the buffer stays open
+                }
+            };
+        }
+
+        @Override
+        protected String extension(TaskAttemptContext context) {
+            return "";
+        }
+    }
+}
@@ -0,0 +1,223 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileChecksum;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+/**
+ * The manifests of the job outputs, which make the Pipeline driver resumable.
+ * <p>
+ * When a job succeeds, a _MANIFEST file is written to its output directory - the output path,
+ * the input and output record counts, the length and fingerprint of every output file (the
+ * FileSystem checksum, or the modification time when the file system has none - the files are
+ * not read), a checksum of all of them, the checksum of the input (the checksum in its manifest,
+ * or for the corpus a checksum of the names, lengths and modification times of its files), the
+ * lengths and fingerprints of the other files the job reads (the vocabulary), and the values of
+ * the settings the output depends on (setting.key = value, none when unset).
+ * With VERIFY the CRC32 of every output file is recorded as well, which reads the whole output.
+ * <p>
+ * With RESUME, a job is skipped when its output has a manifest whose files are all there with
+ * the same lengths and fingerprints (and CRC32, with VERIFY), whose input checksum is the current
+ * one and whose other files and settings have not changed. A rerun starts from the first incomplete job, and the
+ * jobs after it run again unless their input came out the same. The output of an incomplete job is deleted before it runs.
+ */
+public class Checkpoint {
+    // Write a manifest to the output of every job (default true)
+    public static final String ENABLED = "pipeline.checkpoint";
+    // Skip the jobs whose output has a valid manifest
+    public static final String RESUME = "pipeline.resume";
+    // Record the CRC32 of the output files and compare it on resume - reads every output file twice (default false)
+    public static final String VERIFY = "pipeline.resume.verify";
+
+    public static final String MANIFEST = "_MANIFEST";
+
+    private final Configuration conf;
+    // The files the jobs read besides their input
+    private final Path[] files;
+    // The settings the outputs depend on
+    private final String[] settings;
+
+    public Checkpoint(Configuration conf, Path[] files, String... settings) {
+        this.conf = conf;
+        this.files = files;
+        this.settings = settings;
+    }
+
+    /**
+     * @return whether the job writing output from inputs can be skipped - only with RESUME
+     */
+    public boolean isComplete(Path output, Path... inputs) throws IOException {
+        if (!conf.getBoolean(RESUME, false))
+            return false;
+        Properties manifest = read(output);
+        if (manifest == null || !inputChecksum(inputs).equals(manifest.getProperty("input.checksum"))
+                || !filesChecksum().equals(manifest.getProperty("files.checksum")))
+            return false;
+        for (String setting : settings)
+            if (!Objects.equals(conf.get(setting), manifest.getProperty("setting." + setting)))
+                return false;
+        List<FileStatus> files = files(output);
+        if (files.size() != Integer.parseInt(manifest.getProperty("files", "-1")))
+            return false;
+        for (int i = 0; i < files.size(); i++) {
+            String[] file = manifest.getProperty("file." + i, "").split("\t"); // name, length, fingerprint [, CRC32]
+            FileStatus status = files.get(i);
+            if (file.length < 3 || !file[0].equals(status.getPath().getName()) || Long.parseLong(file[1]) != status.getLen()
+                    || !file[2].equals(fingerprint(status)))
+                return false;
+            if (conf.getBoolean(VERIFY, false) && file.length > 3 && crc(status.getPath()) != Long.parseLong(file[3]))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Deletes what an incomplete run of the job left in output, so it can run again - only with RESUME.
+     */
+    public void clear(Path output) throws IOException {
+        if (conf.getBoolean(RESUME, false))
+            output.getFileSystem(conf).delete(output, true);
+    }
+
+    /**
+     * Writes the manifest of a job that succeeded.
+     */
+    public void write(Job job, Path... inputs) throws IOException {
+        if (!conf.getBoolean(ENABLED, true))
+            return;
+        Path output = FileOutputFormat.getOutputPath(job);
+        Counters counters = job.getCounters();
+        Properties manifest = new Properties();
+        manifest.setProperty("job", job.getJobName());
+        manifest.setProperty("output", output.toString());
+        manifest.setProperty("input.checksum", inputChecksum(inputs));
+        manifest.setProperty("files.checksum", filesChecksum());
+        for (String setting : settings)
+            if (conf.get(setting) != null)
+                manifest.setProperty("setting." + setting, conf.get(setting));
+        manifest.setProperty("records.input", String.valueOf(counters.findCounter(TaskCounter.MAP_INPUT_RECORDS).getValue()));
+        manifest.setProperty("records.output", String.valueOf(counters.findCounter(
+                job.getNumReduceTasks() > 0 ? TaskCounter.REDUCE_OUTPUT_RECORDS : TaskCounter.MAP_OUTPUT_RECORDS).getValue()));
+        List<FileStatus> files = files(output);
+        manifest.setProperty("files", String.valueOf(files.size()));
+        CRC32 checksum = new CRC32();
+        for (int i = 0; i < files.size(); i++) {
+            FileStatus status = files.get(i);
+            String file = status.getPath().getName() + "\t" + status.getLen() + "\t" + fingerprint(status)
+                    + (conf.getBoolean(VERIFY, false) ? "\t" + crc(status.getPath()) : "");
+            manifest.setProperty("file." + i, file);
+            checksum.update(file.getBytes(StandardCharsets.UTF_8));
+        }
+        manifest.setProperty("checksum", Long.toHexString(checksum.getValue()));
+        try (OutputStream out = output.getFileSystem(conf).create(new Path(output, MANIFEST), true)) {
+            manifest.store(out, "Manifest of " + job.getJobName());
+        }
+    }
+
+    /**
+     * The checksums of the manifests of the inputs, or of their listings if they have none (the corpus).
+     */
+    private String inputChecksum(Path... inputs) throws IOException {
+        StringBuilder checksum = new StringBuilder();
+        for (Path input : inputs) {
+            Properties manifest = read(input);
+            checksum.append(checksum.length() == 0 ? "" : ",").append(manifest == null ? listingChecksum(input) : manifest.getProperty("checksum"));
+        }
+        return checksum.toString();
+    }
+
+    /**
+     * Checksum of the paths, lengths and fingerprints of the files the jobs read besides their input -
+     * a file rebuilt in place (the vocabulary) changes it.
+     */
+    private String filesChecksum() throws IOException {
+        CRC32 checksum = new CRC32();
+        for (Path file : files) {
+            FileSystem fs = file.getFileSystem(conf);
+            String status = fs.exists(file) ? fs.getFileStatus(file).getLen() + "\t" + fingerprint(fs.getFileStatus(file)) : "missing";
+            checksum.update((file + "\t" + status + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        return Long.toHexString(checksum.getValue());
+    }
+
+    /**
+     * Checksum of the names, lengths and modification times of the files of an input (a file, a
+     * directory or a glob) - the corpus is not read.
+     */
+    private String listingChecksum(Path input) throws IOException {
+        FileSystem fs = input.getFileSystem(conf);
+        List<FileStatus> files = new ArrayList<>();
+        FileStatus[] matches = fs.globStatus(input);
+        if (matches != null)
+            for (FileStatus match : matches)
+                files.addAll(match.isDirectory() ? files(match.getPath()) : Collections.singletonList(match));
+        CRC32 checksum = new CRC32();
+        for (FileStatus status : files)
+            checksum.update((status.getPath() + "\t" + status.getLen() + "\t" + status.getModificationTime() + "\n").getBytes(StandardCharsets.UTF_8));
+        return Long.toHexString(checksum.getValue());
+    }
+
+    private Properties read(Path directory) throws IOException {
+        Path path = new Path(directory, MANIFEST);
+        FileSystem fs = path.getFileSystem(conf);
+        if (!fs.exists(path))
+            return null;
+        Properties manifest = new Properties();
+        try (InputStream in = fs.open(path)) {
+            manifest.load(in);
+        }
+        return manifest;
+    }
+
+    /**
+     * The output files, without _SUCCESS, _MANIFEST and the hidden files, sorted by name.
+     */
+    private List<FileStatus> files(Path directory) throws IOException {
+        List<FileStatus> files = new ArrayList<>();
+        FileSystem fs = directory.getFileSystem(conf);
+        if (!fs.exists(directory))
+            return files;
+        for (FileStatus status : fs.listStatus(directory)) {
+            String name = status.getPath().getName();
+            if (status.isFile() && !name.startsWith("_") && !name.startsWith("."))
+                files.add(status);
+        }
+        files.sort((a, b) -> a.getPath().getName().compareTo(b.getPath().getName()));
+        return files;
+    }
+
+    /**
+     * The FileSystem checksum of a file (computed from the block checksums on HDFS, the ETag on EMRFS),
+     * or its modification time on the file systems that have none (the local one, S3A) - the file is not read.
+     */
+    private String fingerprint(FileStatus status) throws IOException {
+        FileChecksum checksum = status.getPath().getFileSystem(conf).getFileChecksum(status.getPath());
+        return checksum == null ? "mtime:" + status.getModificationTime() : checksum.toString();
+    }
+
+    private long crc(Path file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = file.getFileSystem(conf).open(file)) {
+            int n;
+            while ((n = in.read(buffer)) > 0)
+                crc.update(buffer, 0, n);
+        }
+        return crc.getValue();
+    }
+}
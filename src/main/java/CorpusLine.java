@@ -0,0 +1,186 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses a corpus line "w1 w2 w3 \t year \t occurrences \t pages \t books" in place, over the bytes of
+ * the Text, with the same result as value.toString().split("\t") and fields[0].split(" "):
+ * a line is an n-gram line if it has at least 3 fields and its first field at least n words, and the
+ * n-gram is its first n words - which are the bytes [0, ngramLength()) of the line.
+ * <p>
+ * Nothing is allocated per line, the same CorpusLine is reused for every line of a task.
+ * <p>
+ * The year range (MIN_YEAR, MAX_YEAR) selects the lines of an era - inYears() is false for the
+ * other lines, and the year field is parsed only when a range is set.
+ */
+public class CorpusLine {
+    // First year of the lines that are counted (inclusive, default all of them) - e.g. 1900 for post-1900 only
+    public static final String MIN_YEAR = "pipeline.year.min";
+    // Last year of the lines that are counted (inclusive, default all of them)
+    public static final String MAX_YEAR = "pipeline.year.max";
+
+    private byte[] bytes;
+    // Ends of w1 .. wn (the n-gram) in the line
+    private final int[] wordEnds;
+    private final int minYear;
+    private final int maxYear;
+    private int yearStart;
+    private int yearEnd;
+    private int occurrencesStart;
+    private int occurrencesEnd;
+
+    /**
+     * @param order n - the number of words of the n-grams
+     */
+    public CorpusLine(int order) {
+        this(order, Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param order   n - the number of words of the n-grams
+     * @param minYear first year of the lines in inYears(), inclusive
+     * @param maxYear last year of the lines in inYears(), inclusive
+     */
+    public CorpusLine(int order, int minYear, int maxYear) {
+        wordEnds = new int[order];
+        this.minYear = minYear;
+        this.maxYear = maxYear;
+    }
+
+    /**
+     * The CorpusLine of the order (NGram.ORDER) and the year range of a job.
+     */
+    public static CorpusLine create(Configuration conf) {
+        return new CorpusLine(NGram.order(conf), conf.getInt(MIN_YEAR, Integer.MIN_VALUE), conf.getInt(MAX_YEAR, Integer.MAX_VALUE));
+    }
+
+    /**
+     * @return false if the line is not an n-gram line, the other methods are undefined then
+     */
+    public boolean parse(Text line) {
+        bytes = line.getBytes();
+        int length = line.getLength();
+        // The first field and the first n words
+        int fieldEnd = 0;
+        while (fieldEnd < length && bytes[fieldEnd] != '\t')
+            fieldEnd++;
+        int words = 0;
+        int order = wordEnds.length;
+        for (int i = 0; i < fieldEnd && words < order; i++)
+            if (bytes[i] == ' ')
+                wordEnds[words++] = i;
+        if (words < order)
+            wordEnds[words++] = fieldEnd;
+        if (words < order)
+            return false;
+        // split drops the trailing empty words - the nth or a later word must be non empty
+        if (!hasNonEmpty(bytes, wordStart(order - 1), fieldEnd, (byte) ' '))
+            return false;
+        // The third field is the occurrences, split drops the trailing empty fields as well
+        if (fieldEnd == length)
+            return false;
+        yearStart = fieldEnd + 1;
+        yearEnd = yearStart;
+        while (yearEnd < length && bytes[yearEnd] != '\t')
+            yearEnd++;
+        if (yearEnd == length || !hasNonEmpty(bytes, yearEnd + 1, length, (byte) '\t'))
+            return false;
+        occurrencesStart = yearEnd + 1;
+        occurrencesEnd = occurrencesStart;
+        while (occurrencesEnd < length && bytes[occurrencesEnd] != '\t')
+            occurrencesEnd++;
+        return true;
+    }
+
+    /**
+     * Whether [start, end) holds anything but separators.
+     */
+    private static boolean hasNonEmpty(byte[] bytes, int start, int end, byte separator) {
+        for (int i = start; i < end; i++)
+            if (bytes[i] != separator)
+                return true;
+        return false;
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Length of "w1 .. wn" at the start of the line.
+     */
+    public int ngramLength() {
+        return wordEnds[wordEnds.length - 1];
+    }
+
+    /**
+     * Number of words of the n-grams - n.
+     */
+    public int words() {
+        return wordEnds.length;
+    }
+
+    public int wordStart(int i) {
+        return i == 0 ? 0 : wordEnds[i - 1] + 1;
+    }
+
+    public int wordLength(int i) {
+        return wordEnds[i] - wordStart(i);
+    }
+
+    public boolean hasStopWord() {
+        for (int i = 0; i < wordEnds.length; i++)
+            if (StopWords.contains(bytes, wordStart(i), wordLength(i)))
+                return true;
+        return false;
+    }
+
+    public int occurrencesStart() {
+        return occurrencesStart;
+    }
+
+    public int occurrencesLength() {
+        return occurrencesEnd - occurrencesStart;
+    }
+
+    /**
+     * Whether the year of the line is in the year range - always true when no range is set.
+     *
+     * @throws NumberFormatException if a range is set and the year field is not a number
+     */
+    public boolean inYears() {
+        if (minYear == Integer.MIN_VALUE && maxYear == Integer.MAX_VALUE)
+            return true;
+        long year = parseLong(yearStart, yearEnd);
+        return year >= minYear && year <= maxYear;
+    }
+
+    /**
+     * The occurrences field as a long, like Long.parseLong.
+     */
+    public long occurrences() {
+        return parseLong(occurrencesStart, occurrencesEnd);
+    }
+
+    private long parseLong(int start, int end) {
+        int i = start;
+        boolean negative = i < end && bytes[i] == '-';
+        if (i < end && (bytes[i] == '-' || bytes[i] == '+'))
+            i++;
+        if (i == end)
+            throw badNumber(start, end);
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10)
+                throw badNumber(start, end);
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    private NumberFormatException badNumber(int start, int end) {
+        return new NumberFormatException("For input string: \"" + new String(bytes, start, end - start, StandardCharsets.UTF_8) + "\"");
+    }
+}
@@ -0,0 +1,28 @@
+import org.apache.hadoop.io.Text;
+
+/**
+ * Assigns every input line of Step1 to one of the parts of the corpus used by deleted estimation -
+ * Step1 asks for two (Step1.CORPUS_PARTS), k-fold deleted estimation would ask for k.
+ * <p>
+ * Implementations must be deterministic, so a retried or speculative map task puts every line
+ * in the same part as the first attempt.
+ */
+public interface CorpusSplitter {
+    /**
+     * @param offset byte offset of the line in its input file
+     * @param line   the input line
+     * @param parts  the number of parts of the corpus, positive
+     * @return the part of the corpus, 0 .. parts - 1
+     */
+    int split(long offset, Text line, int parts);
+
+    /**
+     * The part of the line in a corpus of the given number of parts, checked.
+     */
+    static int part(CorpusSplitter splitter, int parts, long offset, Text line) {
+        int part = splitter.split(offset, line, parts);
+        if (part < 0 || part >= parts)
+            throw new IllegalStateException(splitter.getClass().getName() + " returned part " + part + " of " + parts);
+        return part;
+    }
+}
@@ -0,0 +1,68 @@
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Value of the Step1 output: r \t R0 \t R1 of a 3-gram, or N of the ** record.
+ * <p>
+ * toString() gives the Step1 text format, so the same value is written by TextOutputFormat
+ * and SequenceFileOutputFormat.
+ */
+public class CountsWritable implements Writable {
+    private long r;
+    private long R0;
+    private long R1;
+
+    public CountsWritable() {
+    }
+
+    public CountsWritable set(long r, long R0, long R1) {
+        this.r = r;
+        this.R0 = R0;
+        this.R1 = R1;
+        return this;
+    }
+
+    /**
+     * The ** record - the number of 3-grams in all the corpus, it has no parts.
+     */
+    public CountsWritable setTotal(long N) {
+        return set(N, 0, 0);
+    }
+
+    public long getR() {
+        return r;
+    }
+
+    public long getR0() {
+        return R0;
+    }
+
+    public long getR1() {
+        return R1;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        WritableUtils.writeVLong(out, r);
+        WritableUtils.writeVLong(out, R0);
+        WritableUtils.writeVLong(out, R1);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        r = WritableUtils.readVLong(in);
+        R0 = WritableUtils.readVLong(in);
+        R1 = WritableUtils.readVLong(in);
+    }
+
+    @Override
+    public String toString() {
+        if (R0 == 0 && R1 == 0) // ** record
+            return String.valueOf(r);
+        return String.format("%d\t%d\t%d", r, R0, R1);
+    }
+}
@@ -0,0 +1,40 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Default CorpusSplitter - a seeded MurmurHash3 of the line bytes (or of the line offset)
+ * modulo the number of parts. The same line always goes to the same part, whatever the task
+ * attempt or the input split it is read in.
+ */
+public class HashCorpusSplitter extends Configured implements CorpusSplitter {
+    // Seed of the hash, change it to get another split of the same corpus
+    public static final String SEED = "step1.splitter.seed";
+    // Hash the byte offset of the line instead of its content
+    public static final String BY_OFFSET = "step1.splitter.by-offset";
+
+    private int seed = 0;
+    private boolean byOffset = false;
+
+    public HashCorpusSplitter() {
+    }
+
+    public HashCorpusSplitter(int seed) {
+        this.seed = seed;
+    }
+
+    @Override
+    public void setConf(Configuration conf) {
+        super.setConf(conf);
+        if (conf != null) {
+            seed = conf.getInt(SEED, 0);
+            byOffset = conf.getBoolean(BY_OFFSET, false);
+        }
+    }
+
+    @Override
+    public int split(long offset, Text line, int parts) {
+        int hash = byOffset ? MurmurHash3.hash(offset, seed) : MurmurHash3.hash(line.getBytes(), 0, line.getLength(), seed);
+        return Math.floorMod(hash, parts);
+    }
+}
@@ -0,0 +1,510 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.MultipleInputs;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Updates the knowledge base with new corpus files without counting the old ones again.
+ * <p>
+ * Usage: IncrementalUpdate [-D key=value ...] base directory new corpus output
+ * <p>
+ * The base directory keeps the state of the previous updates in its current generation (generation-n),
+ * whose number is in the CURRENT file of the base:
+ * generation-n/counts - the Step1 output (Key = <w1 w2 w3> Value = r \t R0 \t R1, and Key = ** Value = N) of all the corpus so far
+ * generation-n/statistics - the Step2 statistics (<** r>, <N split r>, <T split r>) of all the corpus so far
+ * An update is built in generation-(n + 1) and committed by writing n + 1 to CURRENT once the output is
+ * written, so the counts and the statistics are replaced together - no directory is renamed, which on S3
+ * would be a copy and a delete that a crash can leave half done. A failed update keeps its merged counts,
+ * and only an update of the same corpus resumes it.
+ * <p>
+ * 1) Step1 over the new files only gives the delta counts (R0 and R1 - the two parts Step1 asks the splitter for).
+ * 2) Merge - adds the delta to the base counts, and instead of Step2 emits the change of the N_r / T_r
+ * statistics - minus the old contribution and plus the new one of every 3-gram that has new occurrences.
+ * 3) The new statistics are the old ones plus the changes.
+ * 4) The probabilities are joined map-side to the new counts and sorted by Step4 into the output.
+ * <p>
+ * N divides every probability, so any new occurrence changes all of them and 4) runs over all the
+ * 3-grams of the base (their counts, not the corpus) - only the counting and the statistics are
+ * proportional to the delta. The base must always be updated with the same splitter and vocabulary.
+ * A base directory without CURRENT builds the knowledge base from scratch.
+ */
+public class IncrementalUpdate {
+    private static final Text STARS = new Text("**");
+
+    // Named output of the changes of the statistics (stats-r-xxxxx files next to the merged counts)
+    public static final String CHANGES = "stats";
+    // Generations of the base - the current one and the update that builds the next one
+    private static final String GENERATION = "generation-%05d";
+    // The number of the current generation, written last by an update, and its copy while it is replaced
+    private static final String CURRENT = "CURRENT";
+    private static final String CURRENT_TEMPORARY = "_CURRENT";
+    // Markers of an update - its corpus, merged counts complete, knowledge base written
+    private static final String CORPUS = "_CORPUS";
+    private static final String MERGED = "_MERGED";
+    private static final String WRITTEN = "_WRITTEN";
+    private static final String STATISTICS_FILE = CHANGES + "-r-00000";
+
+    public enum Counter {
+        CHANGED_TRIGRAMS, // 3-grams with new occurrences
+        NEW_TRIGRAMS      // 3-grams that were not in the base
+    }
+
+    /**
+     * Counts of a 3-gram from the base or from the delta.
+     */
+    public static class VersionedCounts implements Writable {
+        private boolean base;
+        private long R0;
+        private long R1;
+
+        public VersionedCounts set(boolean base, long R0, long R1) {
+            this.base = base;
+            this.R0 = R0;
+            this.R1 = R1;
+            return this;
+        }
+
+        public boolean isBase() {
+            return base;
+        }
+
+        public long getR0() {
+            return R0;
+        }
+
+        public long getR1() {
+            return R1;
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            out.writeBoolean(base);
+            WritableUtils.writeVLong(out, R0);
+            WritableUtils.writeVLong(out, R1);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            base = in.readBoolean();
+            R0 = WritableUtils.readVLong(in);
+            R1 = WritableUtils.readVLong(in);
+        }
+    }
+
+    /**
+     * Reads a record of the Step1 output, text or sequence, into trigram and counts.
+     *
+     * @return false for the ** record, its N is counts.getR()
+     */
+    private static boolean read(Writable key, Writable value, Text trigram, CountsWritable counts) {
+        if (value instanceof CountsWritable) { // SequenceFile input - Key = <w1 w2 w3> OR <**> Value = <r R0 R1> OR <N>
+            CountsWritable read = (CountsWritable) value;
+            trigram.set((Text) key);
+            counts.set(read.getR(), read.getR0(), read.getR1());
+            return !key.equals(STARS);
+        }
+        String[] keyValue = value.toString().split("\t"); // [w1 w2 w3, r, R0, R1] OR [**, N]
+        trigram.set(keyValue[0]);
+        if (keyValue.length < 4) {
+            counts.setTotal(Long.parseLong(keyValue[1]));
+            return false;
+        }
+        counts.set(Long.parseLong(keyValue[1]), Long.parseLong(keyValue[2]), Long.parseLong(keyValue[3]));
+        return true;
+    }
+
+    /**
+     * Input:
+     * Key = lineId OR <w1 w2 w3> Value = Step1 output of the base OR of the new files
+     * Output:
+     * 1) Key = <w1 w2 w3> Value = base OR delta, R0, R1
+     * 2) Key = ** Value = base OR delta, N, 0
+     */
+    private static class Map extends Mapper<Writable, Writable, Text, VersionedCounts> {
+        private final Text outKey = new Text();
+        private final VersionedCounts outValue = new VersionedCounts();
+        private final CountsWritable counts = new CountsWritable();
+        private final boolean base;
+
+        Map() {
+            this(false);
+        }
+
+        Map(boolean base) {
+            this.base = base;
+        }
+
+        @Override
+        public void map(Writable key, Writable value, Context context) throws IOException, InterruptedException {
+            if (read(key, value, outKey, counts))
+                context.write(outKey, outValue.set(base, counts.getR0(), counts.getR1()));
+            else
+                context.write(outKey, outValue.set(base, counts.getR(), 0));
+        }
+    }
+
+    private static class BaseMap extends Map {
+        BaseMap() {
+            super(true);
+        }
+    }
+
+    /**
+     * Input:
+     * 1) Key = <w1 w2 w3> Value = base AND/OR delta counts
+     * 2) Key = ** Value = base AND/OR delta N
+     * Output:
+     * 1) Key = <w1 w2 w3> Value = r \t R0 \t R1 (the new base counts) - part file
+     * 2) Key = ** Value = N - part file, and Key = <** **> Value = N - stats file
+     * 3) Key = <N split r> / <T split r> Value = change of N_r_split / T_r_split - stats file, on cleanup
+     */
+    public static class Reduce extends Reducer<Text, VersionedCounts, Text, CountsWritable> {
+        private final CountsWritable counts = new CountsWritable();
+        private final RStatistics changes = new RStatistics();
+        private final TaggedKey statisticsKey = new TaggedKey();
+        private final LongWritable statisticsValue = new LongWritable();
+        private MultipleOutputs<Text, CountsWritable> statistics;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            super.setup(context);
+            statistics = new MultipleOutputs<>(context);
+        }
+
+        @Override
+        protected void reduce(Text key, Iterable<VersionedCounts> values, Context context) throws IOException, InterruptedException {
+            long oldR0 = 0, oldR1 = 0, R0 = 0, R1 = 0;
+            boolean existed = false, changed = false;
+            for (VersionedCounts value : values) {
+                if (value.isBase()) {
+                    existed = true;
+                    oldR0 += value.getR0();
+                    oldR1 += value.getR1();
+                } else
+                    changed = true;
+                R0 += value.getR0();
+                R1 += value.getR1();
+            }
+            if (key.equals(STARS)) { // R0 = N
+                context.write(key, counts.setTotal(R0));
+                statisticsValue.set(R0);
+                statistics.write(CHANGES, statisticsKey.setTotal(), statisticsValue);
+                return;
+            }
+            context.write(key, counts.set(R0 + R1, R0, R1));
+            if (changed) {
+                context.getCounter(Counter.CHANGED_TRIGRAMS).increment(1);
+                if (!existed)
+                    context.getCounter(Counter.NEW_TRIGRAMS).increment(1);
+                contribute(oldR0, oldR1, -1);
+                contribute(R0, R1, 1);
+            }
+        }
+
+        /**
+         * Adds the records Step2.Map writes for a 3-gram, with the given sign.
+         */
+        private void contribute(long R0, long R1, long sign) {
+            if (R0 > 0) {
+                changes.add(TaggedKey.Tag.N, 0, R0, sign);
+                changes.add(TaggedKey.Tag.T, 1, R0, sign * R1);
+            }
+            if (R1 > 0) {
+                changes.add(TaggedKey.Tag.N, 1, R1, sign);
+                changes.add(TaggedKey.Tag.T, 0, R1, sign * R0);
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            for (int i = 0; i < changes.size(); i++) {
+                long r = changes.getR(i);
+                write(TaggedKey.Tag.N, 0, r, changes.getN0(i));
+                write(TaggedKey.Tag.N, 1, r, changes.getN1(i));
+                write(TaggedKey.Tag.T, 0, r, changes.getT0(i));
+                write(TaggedKey.Tag.T, 1, r, changes.getT1(i));
+            }
+            statistics.close();
+            super.cleanup(context);
+        }
+
+        private void write(TaggedKey.Tag tag, int split, long r, long change) throws IOException, InterruptedException {
+            if (change == 0)
+                return;
+            statisticsValue.set(change);
+            statistics.write(CHANGES, statisticsKey.set(tag, split, r), statisticsValue);
+        }
+    }
+
+    /**
+     * Map-side join of the statistics (distributed cache) with the merged counts, like Step3.MapSideJoin.
+     * Input:
+     * Key = lineId OR <w1 w2 w3> Value = Step1 output
+     * Output:
+     * Key = w1 w2 w3 Value = probability
+     */
+    private static class ProbabilityMap extends Mapper<Writable, Writable, Text, Writable> {
+        private ProbabilityTable probabilities;
+        private boolean binary;
+        private final Text outKey = new Text();
+        private final CountsWritable counts = new CountsWritable();
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            super.setup(context);
+            RStatistics statistics = new RStatistics();
+            for (URI file : context.getCacheFiles())
+                statistics.load(context.getConfiguration(), new Path(file));
+            probabilities = new ProbabilityTable(statistics);
+            binary = IntermediateFormat.isBinaryProbabilities(context.getConfiguration());
+        }
+
+        @Override
+        public void map(Writable key, Writable value, Context context) throws IOException, InterruptedException {
+            if (!read(key, value, outKey, counts))
+                return;
+            context.write(outKey, probabilities.value(counts.getR(), binary));
+        }
+    }
+
+    /**
+     * @param base  the base counts, or null for the first update
+     * @param delta the Step1 output of the new files
+     */
+    public static Job createMergeJob(Configuration conf, Path base, Path delta, Path output) throws IOException {
+        Job job = Job.getInstance(conf, "IncrementalMerge");
+        job.setJarByClass(IncrementalUpdate.class);
+        job.setReducerClass(Reduce.class);
+        job.setMapOutputKeyClass(Text.class);
+        job.setMapOutputValueClass(VersionedCounts.class);
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(CountsWritable.class);
+        IntermediateFormat.setOutput(job);
+        if (base != null)
+            MultipleInputs.addInputPath(job, base, IntermediateFormat.inputFormat(conf), BaseMap.class);
+        MultipleInputs.addInputPath(job, delta, IntermediateFormat.inputFormat(conf), Map.class);
+        MultipleOutputs.addNamedOutput(job, CHANGES, IntermediateFormat.outputFormat(conf), TaggedKey.class, LongWritable.class);
+        FileOutputFormat.setOutputPath(job, output);
+        return job;
+    }
+
+    /**
+     * @param statistics the statistics file of all the corpus
+     */
+    public static Job createProbabilityJob(Configuration conf, Path counts, Path statistics, Path output) throws IOException {
+        Job job = Job.getInstance(conf, "IncrementalProbabilities");
+        job.setJarByClass(IncrementalUpdate.class);
+        job.setMapperClass(ProbabilityMap.class);
+        job.setNumReduceTasks(0);
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(IntermediateFormat.probabilityClass(conf));
+        IntermediateFormat.setInput(job);
+        IntermediateFormat.setOutput(job);
+        job.addCacheFile(statistics.toUri());
+        FileInputFormat.addInputPath(job, counts);
+        FileOutputFormat.setOutputPath(job, output);
+        return job;
+    }
+
+    /**
+     * Writes the statistics in the Step2 stats format: <** r> N, then the non zero <N split r> / <T split r> of every r.
+     */
+    private static void writeStatistics(Configuration conf, RStatistics statistics, Path file) throws IOException {
+        TaggedKey key = new TaggedKey();
+        LongWritable value = new LongWritable();
+        SequenceFile.Writer sequence = null;
+        Writer text = null;
+        if (IntermediateFormat.isSequence(conf))
+            sequence = SequenceFile.createWriter(conf,
+                    SequenceFile.Writer.file(file),
+                    SequenceFile.Writer.keyClass(TaggedKey.class),
+                    SequenceFile.Writer.valueClass(LongWritable.class));
+        else
+            text = new OutputStreamWriter(file.getFileSystem(conf).create(file), StandardCharsets.UTF_8);
+        try {
+            for (int i = 0; i < statistics.size(); i++) {
+                long r = statistics.getR(i);
+                long[][] records = {{0, statistics.getN0(i)}, {1, statistics.getN1(i)}, {0, statistics.getT0(i)}, {1, statistics.getT1(i)}};
+                if (records[0][1] == 0 && records[1][1] == 0 && records[2][1] == 0 && records[3][1] == 0)
+                    continue; // no 3-gram has this r anymore
+                for (int record = -1; record < records.length; record++) {
+                    if (record < 0) {
+                        key.set(TaggedKey.Tag.R, 0, r);
+                        value.set(statistics.getN());
+                    } else if (records[record][1] != 0) {
+                        key.set(record < 2 ? TaggedKey.Tag.N : TaggedKey.Tag.T, (int) records[record][0], r);
+                        value.set(records[record][1]);
+                    } else
+                        continue;
+                    if (sequence != null)
+                        sequence.append(key, value);
+                    else
+                        text.write(key + "\t" + value + "\n");
+                }
+            }
+        } finally {
+            if (sequence != null)
+                sequence.close();
+            else
+                text.close();
+        }
+    }
+
+    /**
+     * The current generation of the base - CURRENT, or its copy if the commit stopped after deleting it -
+     * 0 if it has none yet.
+     */
+    private static int currentGeneration(FileSystem fs, Path base) throws IOException {
+        for (String name : new String[]{CURRENT, CURRENT_TEMPORARY}) {
+            Path current = new Path(base, name);
+            if (fs.exists(current))
+                return Integer.parseInt(readMarker(fs, current).trim());
+        }
+        return 0;
+    }
+
+    /**
+     * Makes generation the current one. The copy is complete before CURRENT is deleted, so a crash
+     * leaves CURRENT or its copy with the old or the new generation.
+     */
+    private static void commitGeneration(FileSystem fs, Path base, int generation) throws IOException {
+        Path current = new Path(base, CURRENT), temporary = new Path(base, CURRENT_TEMPORARY);
+        writeMarker(fs, temporary, String.valueOf(generation));
+        fs.delete(current, false);
+        if (!fs.rename(temporary, current))
+            throw new IOException("Could not rename " + temporary + " to " + current);
+    }
+
+    private static void writeMarker(FileSystem fs, Path marker, String content) throws IOException {
+        try (Writer out = new OutputStreamWriter(fs.create(marker, true), StandardCharsets.UTF_8)) {
+            out.write(content);
+        }
+    }
+
+    private static String readMarker(FileSystem fs, Path marker) throws IOException {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(marker), StandardCharsets.UTF_8))) {
+            String content = in.readLine();
+            return content == null ? "" : content;
+        }
+    }
+
+    /**
+     * Merges the new corpus files into the base and writes the knowledge base of all the corpus to output.
+     */
+    public static boolean run(Configuration conf, Path base, Path corpus, Path output) throws Exception {
+        FileSystem fs = base.getFileSystem(conf);
+        corpus = corpus.getFileSystem(conf).makeQualified(corpus);
+        int generation = currentGeneration(fs, base);
+        Path current = new Path(base, String.format(GENERATION, generation));
+        Path counts = new Path(current, "counts");
+        Path statistics = new Path(current, "statistics");
+        if (generation > 0 && !(fs.exists(new Path(current, MERGED)) && fs.exists(new Path(statistics, STATISTICS_FILE))))
+            throw new IOException(current + " is incomplete, its counts and statistics are out of step");
+        Path work = new Path(base, String.format(GENERATION, generation + 1));
+        for (FileStatus stale : fs.globStatus(new Path(base, "generation-*")))
+            if (stale.getPath().getName().compareTo(work.getName()) > 0)
+                throw new IOException(stale.getPath() + " is newer than the current generation " + current);
+
+        // The update is built in the next generation, which becomes the current one once the output is
+        // written - the current generation stays untouched until then
+        Path merged = new Path(work, "counts");
+        if (fs.exists(new Path(work, MERGED))) { // the merged counts of a failed run are kept
+            String pending = readMarker(fs, new Path(work, CORPUS));
+            if (!pending.equals(corpus.toString()))
+                throw new IOException(work + " holds the uncommitted update of " + pending
+                        + " - run the update of " + pending + " again to finish it, or delete " + work + " to discard it");
+            System.out.println("Resuming the update of " + corpus + " in " + work);
+        } else {
+            fs.delete(work, true);
+            writeMarker(fs, new Path(work, CORPUS), corpus.toString());
+            if (!Metrics.waitForCompletion(Step1.createJob(conf, corpus, new Path(work, "delta")), true))
+                return false;
+            Job merge = createMergeJob(conf, generation > 0 ? counts : null, new Path(work, "delta"), merged);
+            if (!Metrics.waitForCompletion(merge, true))
+                return false;
+            System.out.println(String.format("%d 3-grams changed (%d new)",
+                    merge.getCounters().findCounter(Counter.CHANGED_TRIGRAMS).getValue(),
+                    merge.getCounters().findCounter(Counter.NEW_TRIGRAMS).getValue()));
+            writeMarker(fs, new Path(work, MERGED), "");
+        }
+
+        // The changes are removed from the merged counts only once the statistics that hold them are written
+        Path statisticsFile = new Path(work, "statistics/" + STATISTICS_FILE);
+        FileStatus[] changeFiles = fs.globStatus(new Path(merged, CHANGES + "-*"));
+        if (!fs.exists(statisticsFile)) {
+            RStatistics updated = new RStatistics();
+            if (generation > 0)
+                updated.load(conf, statistics);
+            long oldN = updated.getN();
+            RStatistics changes = new RStatistics();
+            for (FileStatus file : changeFiles)
+                changes.load(conf, file.getPath());
+            for (int i = 0; i < changes.size(); i++) {
+                long r = changes.getR(i);
+                updated.add(TaggedKey.Tag.N, 0, r, changes.getN0(i));
+                updated.add(TaggedKey.Tag.N, 1, r, changes.getN1(i));
+                updated.add(TaggedKey.Tag.T, 0, r, changes.getT0(i));
+                updated.add(TaggedKey.Tag.T, 1, r, changes.getT1(i));
+            }
+            updated.setN(changes.getN());
+            Path temporary = new Path(work, "statistics/_" + STATISTICS_FILE);
+            writeStatistics(conf, updated, temporary);
+            if (!fs.rename(temporary, statisticsFile))
+                throw new IOException("Could not rename " + temporary + " to " + statisticsFile);
+            System.out.println(String.format("N %d -> %d, %d of %d r-buckets changed", oldN, updated.getN(), changes.size(), updated.size()));
+        }
+        for (FileStatus file : changeFiles)
+            fs.delete(file.getPath(), false);
+
+        if (!fs.exists(new Path(work, WRITTEN)) || !readMarker(fs, new Path(work, WRITTEN)).equals(output.toString())) {
+            fs.delete(new Path(work, "probabilities"), true);
+            if (!Metrics.waitForCompletion(createProbabilityJob(conf, merged, statisticsFile, new Path(work, "probabilities")), true))
+                return false;
+            if (!Metrics.waitForCompletion(Step4.createJob(conf, new Path(work, "probabilities"), output), true))
+                return false;
+            writeMarker(fs, new Path(work, WRITTEN), output.toString());
+        }
+
+        // The update becomes the current generation when CURRENT is written, then the old generations are dropped
+        fs.delete(new Path(work, "delta"), true);
+        fs.delete(new Path(work, "probabilities"), true);
+        commitGeneration(fs, base, generation + 1);
+        for (FileStatus old : fs.globStatus(new Path(base, "generation-*")))
+            if (old.getPath().getName().compareTo(work.getName()) < 0)
+                fs.delete(old.getPath(), true);
+        return true;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        String[] remaining = new GenericOptionsParser(conf, args).getRemainingArgs();
+        if (remaining.length != 3) {
+            System.err.println("Usage: IncrementalUpdate [-D key=value ...] <base directory> <new corpus> <output>");
+            System.exit(2);
+        }
+        System.exit(run(conf, new Path(remaining[0]), new Path(remaining[1]), new Path(remaining[2])) ? 0 : 1);
+    }
+}
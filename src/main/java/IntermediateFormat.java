@@ -0,0 +1,133 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.compress.BZip2Codec;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.io.compress.GzipCodec;
+import org.apache.hadoop.io.compress.Lz4Codec;
+import org.apache.hadoop.io.compress.SnappyCodec;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.OutputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+
+/**
+ * Format of the data written between the steps (output_step_11 .. output_step_33).
+ * <p>
+ * text - TextOutputFormat / TextInputFormat, "key \t value" lines.
+ * sequence - block compressed SequenceFiles of the typed keys and values of every step
+ * (Text / CountsWritable, TaggedKey / LongWritable, Text / Text).
+ * The final knowledge base (Step4) is always written as text.
+ * <p>
+ * With BINARY_PROBABILITIES the sequence output of Step3 has DoubleWritable probabilities instead of
+ * their text, Step4 formats only the ones it keeps.
+ * <p>
+ * With the manifest committer, every step output is written by BlockOutputFormat in the same format.
+ */
+public class IntermediateFormat {
+    // text OR sequence
+    public static final String FORMAT = "pipeline.intermediate.format";
+    // snappy, lz4, gzip, bzip2, deflate OR a CompressionCodec class name (default snappy, deflate without the native snappy library)
+    public static final String CODEC = "pipeline.intermediate.codec";
+    // file (FileOutputCommitter, the files are renamed) OR manifest (BlockOutputFormat and ManifestCommitter)
+    public static final String COMMITTER = "pipeline.output.committer";
+    // Write the probabilities of the Step3 output as DoubleWritable (sequence format only)
+    public static final String BINARY_PROBABILITIES = "pipeline.intermediate.binary-probabilities";
+
+    public static boolean isSequence(Configuration conf) {
+        String format = conf.get(FORMAT, "text");
+        if (format.equals("sequence"))
+            return true;
+        if (format.equals("text"))
+            return false;
+        throw new IllegalArgumentException(FORMAT + " must be text or sequence: " + format);
+    }
+
+    public static boolean isManifest(Configuration conf) {
+        String committer = conf.get(COMMITTER, "file");
+        if (committer.equals("manifest"))
+            return true;
+        if (committer.equals("file"))
+            return false;
+        throw new IllegalArgumentException(COMMITTER + " must be file or manifest: " + committer);
+    }
+
+    @SuppressWarnings("rawtypes")
+    public static Class<? extends OutputFormat> outputFormat(Configuration conf) {
+        if (!isSequence(conf))
+            return textOutputFormat(conf);
+        return isManifest(conf) ? BlockOutputFormat.SequenceFormat.class : SequenceFileOutputFormat.class;
+    }
+
+    /**
+     * The output format of the text outputs (the vocabulary counts of Step0 and the knowledge base).
+     */
+    @SuppressWarnings("rawtypes")
+    public static Class<? extends OutputFormat> textOutputFormat(Configuration conf) {
+        return isManifest(conf) ? BlockOutputFormat.TextFormat.class : TextOutputFormat.class;
+    }
+
+    public static boolean isBinaryProbabilities(Configuration conf) {
+        return isSequence(conf) && conf.getBoolean(BINARY_PROBABILITIES, false);
+    }
+
+    /**
+     * The value class of the Step3 output (w1 w2 w3 / probability).
+     */
+    public static Class<? extends Writable> probabilityClass(Configuration conf) {
+        return isBinaryProbabilities(conf) ? DoubleWritable.class : Text.class;
+    }
+
+    @SuppressWarnings("rawtypes")
+    public static Class<? extends InputFormat> inputFormat(Configuration conf) {
+        return isSequence(conf) ? SequenceFileInputFormat.class : TextInputFormat.class;
+    }
+
+    /**
+     * Sets the output format of a step that writes intermediate data.
+     */
+    public static void setOutput(Job job) {
+        Configuration conf = job.getConfiguration();
+        job.setOutputFormatClass(outputFormat(conf));
+        if (isSequence(conf)) {
+            FileOutputFormat.setCompressOutput(job, true);
+            FileOutputFormat.setOutputCompressorClass(job, codec(conf));
+            SequenceFileOutputFormat.setOutputCompressionType(job, SequenceFile.CompressionType.BLOCK);
+        }
+    }
+
+    /**
+     * Sets the input format of a step that reads intermediate data.
+     */
+    public static void setInput(Job job) {
+        job.setInputFormatClass(inputFormat(job.getConfiguration()));
+    }
+
+    public static Class<? extends CompressionCodec> codec(Configuration conf) {
+        String codec = conf.get(CODEC, SnappyCodec.isNativeCodeLoaded() ? "snappy" : "deflate");
+        switch (codec) {
+            case "snappy":
+                return SnappyCodec.class;
+            case "lz4":
+                return Lz4Codec.class;
+            case "gzip":
+                return GzipCodec.class;
+            case "bzip2":
+                return BZip2Codec.class;
+            case "deflate":
+                return DefaultCodec.class;
+            default:
+                Class<?> codecClass = conf.getClassByNameOrNull(codec);
+                if (codecClass == null)
+                    throw new IllegalArgumentException("Unknown " + CODEC + ": " + codec);
+                return codecClass.asSubclass(CompressionCodec.class);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Read only, memory mapped knowledge base built from the Step4 output by KnowledgeBaseIndexWriter.
+ * <p>
+ * File layout (big endian):
+ * 1) Header - magic, version, vocabulary size V, contexts C, entries E, vocabulary bytes B, reserved
+ * 2) Vocabulary - int[V + 1] offsets and the UTF-8 bytes of the words, sorted (the id of a word is its rank)
+ * 3) Contexts - long[C] (w1 id << 32 | w2 id) sorted, int[C] first entry, int[C] number of entries
+ * 4) Entries - E x (int w3 id, float probability), every context sorted by probability descending
+ * <p>
+ * The entries are mapped in chunks of CHUNK_ENTRIES, so E is only limited by the int entry numbers.
+ * The lookups only read the mapped buffers, they do not allocate and are safe to call from many threads.
+ */
+public class KnowledgeBaseIndex implements Closeable {
+    static final int MAGIC = 0x4B424958; // KBIX
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 32;
+    // Entries per mapped chunk (1 GB)
+    private static final int CHUNK_SHIFT = 27;
+    private static final int CHUNK_ENTRIES = 1 << CHUNK_SHIFT;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer tables;
+    private final MappedByteBuffer[] entries;
+    private final int vocabularySize;
+    private final int contextCount;
+    private final int wordBytesStart;
+    private final int keysStart;
+    private final int startsStart;
+    private final int countsStart;
+
+    private KnowledgeBaseIndex(File index) throws IOException {
+        file = new RandomAccessFile(index, "r");
+        FileChannel channel = file.getChannel();
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+            throw new IOException("Not a knowledge base index: " + index);
+        vocabularySize = header.getInt(8);
+        contextCount = header.getInt(12);
+        long entryCount = header.getLong(16);
+        int vocabularyBytes = header.getInt(24);
+        long tablesEnd = HEADER_BYTES + 4L * (vocabularySize + 1) + vocabularyBytes;
+        tablesEnd += -tablesEnd & 7;
+        long keys = tablesEnd;
+        tablesEnd += 16L * contextCount;
+        if (tablesEnd > Integer.MAX_VALUE || entryCount > Integer.MAX_VALUE)
+            throw new IOException("The index is too large to be mapped: " + index);
+        wordBytesStart = HEADER_BYTES + 4 * (vocabularySize + 1);
+        keysStart = (int) keys;
+        startsStart = keysStart + 8 * contextCount;
+        countsStart = startsStart + 4 * contextCount;
+        tables = channel.map(FileChannel.MapMode.READ_ONLY, 0, tablesEnd);
+        entries = new MappedByteBuffer[(int) ((entryCount + CHUNK_ENTRIES - 1) >>> CHUNK_SHIFT)];
+        for (int chunk = 0; chunk < entries.length; chunk++) {
+            long first = (long) chunk << CHUNK_SHIFT;
+            entries[chunk] = channel.map(FileChannel.MapMode.READ_ONLY, tablesEnd + 8 * first, 8 * Math.min(CHUNK_ENTRIES, entryCount - first));
+        }
+    }
+
+    public static KnowledgeBaseIndex open(File index) throws IOException {
+        return new KnowledgeBaseIndex(index);
+    }
+
+    static long contextKey(int w1, int w2) {
+        return (long) w1 << 32 | (w2 & 0xFFFFFFFFL);
+    }
+
+    public int vocabularySize() {
+        return vocabularySize;
+    }
+
+    public int contextCount() {
+        return contextCount;
+    }
+
+    /**
+     * @return the id of the word, or -1 if it is not in the knowledge base
+     */
+    public int wordId(CharSequence word) {
+        int low = 0, high = vocabularySize - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int start = tables.getInt(HEADER_BYTES + 4 * mid);
+            int end = tables.getInt(HEADER_BYTES + 4 * (mid + 1));
+            int cmp = compareUtf8(wordBytesStart + start, end - start, word);
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    public String word(int id) {
+        int start = tables.getInt(HEADER_BYTES + 4 * id);
+        int end = tables.getInt(HEADER_BYTES + 4 * (id + 1));
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = tables.get(wordBytesStart + start + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Copies the k most probable w3 of the context (w1, w2) into words and probabilities.
+     *
+     * @return the number of candidates copied (0 if the context is unknown)
+     */
+    public int topK(int w1, int w2, int k, int[] words, float[] probabilities) {
+        if (w1 < 0 || w2 < 0)
+            return 0;
+        long key = contextKey(w1, w2);
+        int low = 0, high = contextCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midKey = tables.getLong(keysStart + 8 * mid);
+            if (midKey < key)
+                low = mid + 1;
+            else if (midKey > key)
+                high = mid - 1;
+            else {
+                int first = tables.getInt(startsStart + 4 * mid);
+                int count = Math.min(Math.min(k, tables.getInt(countsStart + 4 * mid)), Math.min(words.length, probabilities.length));
+                for (int i = 0; i < count; i++) {
+                    int entry = first + i;
+                    MappedByteBuffer chunk = entries[entry >>> CHUNK_SHIFT];
+                    int position = 8 * (entry & (CHUNK_ENTRIES - 1));
+                    words[i] = chunk.getInt(position);
+                    probabilities[i] = chunk.getFloat(position + 4);
+                }
+                return count;
+            }
+        }
+        return 0;
+    }
+
+    public int topK(CharSequence w1, CharSequence w2, int k, int[] words, float[] probabilities) {
+        return topK(wordId(w1), wordId(w2), k, words, probabilities);
+    }
+
+    /**
+     * Compares the UTF-8 bytes at the given position with the UTF-8 encoding of the word,
+     * encoding one code point at a time.
+     */
+    private int compareUtf8(int position, int length, CharSequence word) {
+        int i = 0;
+        for (int c = 0; c < word.length(); c++) {
+            int codePoint = word.charAt(c);
+            if (Character.isHighSurrogate(word.charAt(c)) && c + 1 < word.length())
+                codePoint = Character.toCodePoint(word.charAt(c), word.charAt(++c));
+            int encodedLength = codePoint < 0x80 ? 1 : codePoint < 0x800 ? 2 : codePoint < 0x10000 ? 3 : 4;
+            for (int b = 0; b < encodedLength; b++) {
+                if (i == length)
+                    return -1;
+                int expected = utf8Byte(codePoint, encodedLength, b);
+                int actual = tables.get(position + i++) & 0xFF;
+                if (actual != expected)
+                    return actual - expected;
+            }
+        }
+        return i == length ? 0 : 1;
+    }
+
+    private static int utf8Byte(int codePoint, int length, int index) {
+        if (length == 1)
+            return codePoint;
+        if (index == 0)
+            return (0xFF00 >> length & 0xFF) | codePoint >> (6 * (length - 1));
+        return 0x80 | (codePoint >> (6 * (length - 1 - index)) & 0x3F);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * build <Step4 output directory> <index file>
+     * query <index file> <w1> <w2> [k]
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 3 && args[0].equals("build")) {
+            new KnowledgeBaseIndexWriter(new Configuration(), new Path(args[1])).write(new File(args[2]));
+        } else if (args.length >= 4 && args[0].equals("query")) {
+            int k = args.length > 4 ? Integer.parseInt(args[4]) : 5;
+            int[] words = new int[k];
+            float[] probabilities = new float[k];
+            try (KnowledgeBaseIndex index = open(new File(args[1]))) {
+                int count = index.topK(args[2], args[3], k, words, probabilities);
+                for (int i = 0; i < count; i++)
+                    System.out.println(String.format("%s %s %s\t%s", args[2], args[3], index.word(words[i]), probabilities[i]));
+            }
+        } else {
+            System.err.println("Usage: KnowledgeBaseIndex build <step4 output> <index file> | query <index file> <w1> <w2> [k]");
+            System.exit(2);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.util.LineReader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Compiles the Step4 output (<w1 w2 w3 \t probability> lines, sorted by w1 w2) into the binary
+ * file read by KnowledgeBaseIndex.
+ * <p>
+ * Pass 1 collects the vocabulary and gives every word its rank in UTF-8 byte order as id.
+ * Pass 2 writes the (w3 id, probability) runs of every (w1, w2) context, sorted by probability.
+ * <p>
+ * The index holds 3-grams only - the output of a pipeline with another pipeline.ngram.order is refused.
+ */
+public class KnowledgeBaseIndexWriter {
+    private final Configuration conf;
+    private final List<Path> parts = new ArrayList<>();
+
+    public KnowledgeBaseIndexWriter(Configuration conf, Path step4Output) throws IOException {
+        if (NGram.order(conf) != 3)
+            throw new IllegalArgumentException("The knowledge base index holds 3-grams, " + NGram.ORDER + " is " + NGram.order(conf));
+        this.conf = conf;
+        FileSystem fs = step4Output.getFileSystem(conf);
+        for (FileStatus status : fs.listStatus(step4Output)) {
+            String name = status.getPath().getName();
+            if (!status.isDirectory() && !name.startsWith("_") && !name.startsWith("."))
+                parts.add(status.getPath());
+        }
+        parts.sort(null); // part-r-00000, part-r-00001, ... in total order
+    }
+
+    public void write(File index) throws IOException {
+        // Pass 1 - vocabulary
+        HashMap<String, Integer> ids = new HashMap<>();
+        forEachTrigram((words, probability) -> {
+            for (String word : words)
+                ids.putIfAbsent(word, 0);
+        });
+        if (ids.isEmpty())
+            throw new IOException("No 3-grams in " + parts);
+        byte[][] vocabulary = new byte[ids.size()][];
+        int v = 0;
+        for (String word : ids.keySet())
+            vocabulary[v++] = word.getBytes(StandardCharsets.UTF_8);
+        Arrays.sort(vocabulary, (a, b) -> WritableComparator.compareBytes(a, 0, a.length, b, 0, b.length));
+        for (int id = 0; id < vocabulary.length; id++)
+            ids.put(new String(vocabulary[id], StandardCharsets.UTF_8), id);
+
+        // Pass 2 - entries, written to a temporary file while the context table is built
+        File entriesFile = File.createTempFile("kb-entries", ".bin", index.getAbsoluteFile().getParentFile());
+        ContextTable contexts = new ContextTable();
+        try {
+            try (DataOutputStream entries = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(entriesFile), 1 << 20))) {
+                Run run = new Run();
+                forEachTrigram((words, probability) -> {
+                    long context = KnowledgeBaseIndex.contextKey(ids.get(words[0]), ids.get(words[1]));
+                    if (run.size > 0 && run.context != context) {
+                        contexts.add(run.context, run.write(entries));
+                        run.clear();
+                    }
+                    run.context = context;
+                    run.add(ids.get(words[2]), probability);
+                });
+                if (run.size > 0)
+                    contexts.add(run.context, run.write(entries));
+            }
+            contexts.sort();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(index), 1 << 20))) {
+                writeHeaderAndTables(out, vocabulary, contexts);
+                try (InputStream in = new BufferedInputStream(new FileInputStream(entriesFile), 1 << 20)) {
+                    copy(in, out);
+                }
+            }
+        } finally {
+            entriesFile.delete();
+        }
+    }
+
+    private void writeHeaderAndTables(DataOutputStream out, byte[][] vocabulary, ContextTable contexts) throws IOException {
+        long vocabularyBytes = 0;
+        for (byte[] word : vocabulary)
+            vocabularyBytes += word.length;
+        // KnowledgeBaseIndex maps the header, vocabulary and contexts as one buffer
+        long tablesBytes = KnowledgeBaseIndex.HEADER_BYTES + 4L * (vocabulary.length + 1) + vocabularyBytes + 7 + 16L * contexts.size;
+        if (tablesBytes > Integer.MAX_VALUE)
+            throw new IOException("Too many words or contexts for one index file");
+        out.writeInt(KnowledgeBaseIndex.MAGIC);
+        out.writeInt(KnowledgeBaseIndex.VERSION);
+        out.writeInt(vocabulary.length);
+        out.writeInt(contexts.size);
+        out.writeLong(contexts.entries);
+        out.writeInt((int) vocabularyBytes);
+        out.writeInt(0); // reserved
+        int offset = 0;
+        out.writeInt(offset);
+        for (byte[] word : vocabulary)
+            out.writeInt(offset += word.length);
+        for (byte[] word : vocabulary)
+            out.write(word);
+        int padding = (int) (-(KnowledgeBaseIndex.HEADER_BYTES + 4L * (vocabulary.length + 1) + vocabularyBytes) & 7);
+        out.write(new byte[padding]);
+        for (int i = 0; i < contexts.size; i++)
+            out.writeLong(contexts.keys[i]);
+        for (int i = 0; i < contexts.size; i++)
+            out.writeInt(contexts.starts[i]);
+        for (int i = 0; i < contexts.size; i++)
+            out.writeInt(contexts.counts[i]);
+    }
+
+    private interface TrigramConsumer {
+        void accept(String[] words, float probability) throws IOException;
+    }
+
+    private void forEachTrigram(TrigramConsumer consumer) throws IOException {
+        Text line = new Text();
+        for (Path part : parts) {
+            FileSystem fs = part.getFileSystem(conf);
+            try (InputStream in = fs.open(part)) {
+                LineReader reader = new LineReader(in, conf);
+                while (reader.readLine(line) > 0) {
+                    String[] keyValue = line.toString().split("\t"); // [w1 w2 w3, probability]
+                    String[] words = keyValue[0].split(" ");
+                    if (keyValue.length != 2)
+                        continue;
+                    if (words.length != 3)
+                        throw new IOException("The knowledge base index holds 3-grams, " + part + " has the "
+                                + words.length + "-gram \"" + keyValue[0] + "\" (" + NGram.ORDER + " must be 3)");
+                    consumer.accept(words, Float.parseFloat(keyValue[1]));
+                }
+            }
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[1 << 16];
+        int n;
+        while ((n = in.read(buffer)) > 0)
+            out.write(buffer, 0, n);
+    }
+
+    /**
+     * The w3 candidates of the current context, written sorted by probability descending.
+     */
+    private static class Run {
+        long context;
+        int[] words = new int[16];
+        float[] probabilities = new float[16];
+        int size;
+
+        void add(int word, float probability) {
+            if (size == words.length) {
+                words = Arrays.copyOf(words, size * 2);
+                probabilities = Arrays.copyOf(probabilities, size * 2);
+            }
+            words[size] = word;
+            probabilities[size++] = probability;
+        }
+
+        int write(DataOutputStream out) throws IOException {
+            // insertion sort - the runs of Step4 are already sorted
+            for (int i = 1; i < size; i++) {
+                int word = words[i];
+                float probability = probabilities[i];
+                int j = i - 1;
+                for (; j >= 0 && probabilities[j] < probability; j--) {
+                    words[j + 1] = words[j];
+                    probabilities[j + 1] = probabilities[j];
+                }
+                words[j + 1] = word;
+                probabilities[j + 1] = probability;
+            }
+            for (int i = 0; i < size; i++) {
+                out.writeInt(words[i]);
+                out.writeFloat(probabilities[i]);
+            }
+            return size;
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+
+    private static class ContextTable {
+        long[] keys = new long[1024];
+        int[] starts = new int[1024];
+        int[] counts = new int[1024];
+        int size;
+        long entries;
+
+        void add(long key, int count) throws IOException {
+            if (entries + count > Integer.MAX_VALUE)
+                throw new IOException("Too many entries for one index file");
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                starts = Arrays.copyOf(starts, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            keys[size] = key;
+            starts[size] = (int) entries;
+            counts[size++] = count;
+            entries += count;
+        }
+
+        /**
+         * Sorts the contexts by (w1 id, w2 id), the runs stay where they were written.
+         */
+        void sort() throws IOException {
+            boolean sorted = true;
+            for (int i = 1; i < size && sorted; i++)
+                sorted = keys[i - 1] < keys[i];
+            if (!sorted) {
+                Integer[] order = new Integer[size];
+                for (int i = 0; i < size; i++)
+                    order[i] = i;
+                Arrays.sort(order, (x, y) -> Long.compare(keys[x], keys[y]));
+                long[] sortedKeys = new long[size];
+                int[] sortedStarts = new int[size];
+                int[] sortedCounts = new int[size];
+                for (int i = 0; i < size; i++) {
+                    sortedKeys[i] = keys[order[i]];
+                    sortedStarts[i] = starts[order[i]];
+                    sortedCounts[i] = counts[order[i]];
+                }
+                keys = sortedKeys;
+                starts = sortedStarts;
+                counts = sortedCounts;
+            }
+            for (int i = 1; i < size; i++)
+                if (keys[i - 1] == keys[i])
+                    throw new IOException("The input is not grouped by (w1, w2), a context appears twice");
+        }
+    }
+}
@@ -0,0 +1,99 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.ToolRunner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the whole pipeline in this JVM with the LocalJobRunner (Pipeline -local), on a local corpus or
+ * on a generated sample corpus, and prints the wall time, records/sec and shuffle bytes of every step.
+ * <p>
+ * Usage: LocalPipeline [-D key=value ...] [-resume] (corpus directory | -generate lines) work directory
+ * <p>
+ * The work directory is the Pipeline ROOT - the outputs are written to output_step_11 .. output_step_44
+ * under it, and all the -D options of Pipeline and of the steps apply (pipeline.fused, intermediate
+ * format, map-side join, total order, ...). -resume skips the steps whose output is complete
+ * (Checkpoint), without it the outputs of a previous run are deleted first. The JSON metrics report
+ * of the steps is written to metrics.json under the work directory, or to Metrics.PATH.
+ */
+public class LocalPipeline extends Pipeline {
+    // Vocabulary size and Zipf exponent of the generated corpus
+    public static final String SAMPLE_WORDS = "local.sample.words";
+    public static final String SAMPLE_EXPONENT = "local.sample.exponent";
+
+    private final List<String> report = new ArrayList<>();
+
+    /**
+     * Adds the line of the job to the report.
+     */
+    @Override
+    protected void completed(Job job, double seconds) throws IOException {
+        Counters counters = job.getCounters();
+        long input = counters.findCounter(TaskCounter.MAP_INPUT_RECORDS).getValue();
+        report.add(String.format("%-18s %10.2f %14d %14.0f %14d %16d %14d", job.getJobName(), seconds, input, input / seconds,
+                counters.findCounter(TaskCounter.MAP_OUTPUT_RECORDS).getValue(),
+                counters.findCounter(TaskCounter.REDUCE_SHUFFLE_BYTES).getValue(),
+                counters.findCounter(job.getNumReduceTasks() > 0 ? TaskCounter.REDUCE_OUTPUT_RECORDS : TaskCounter.MAP_OUTPUT_RECORDS).getValue()));
+    }
+
+    /**
+     * Runs the steps like Pipeline, then prints the report.
+     */
+    @Override
+    public int run(String[] args) throws Exception {
+        long start = System.nanoTime();
+        int status = super.run(args);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println(String.format("%-18s %10s %14s %14s %14s %16s %14s", "step", "wall (s)", "input records", "records/sec", "map output", "shuffle bytes", "output records"));
+        for (String line : report)
+            System.out.println(line);
+        System.out.println(String.format("%-18s %10.2f", "total", seconds));
+        return status;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        String[] remaining = new GenericOptionsParser(conf, args).getRemainingArgs();
+        boolean resume = remaining.length > 0 && remaining[0].equals("-resume");
+        if (resume)
+            remaining = Arrays.copyOfRange(remaining, 1, remaining.length);
+        if (remaining.length != 2 && !(remaining.length == 3 && remaining[0].equals("-generate"))) {
+            System.err.println("Usage: LocalPipeline [-D key=value ...] [-resume] (<corpus> | -generate <lines>) <work directory>");
+            System.exit(2);
+        }
+        Path work = new Path(remaining[remaining.length - 1]);
+        FileSystem fs = FileSystem.getLocal(conf);
+        Path corpus;
+        if (remaining[0].equals("-generate")) {
+            corpus = new Path(work, "corpus");
+            long lines = Long.parseLong(remaining[1]);
+            // A resumed run keeps the corpus - a new one would run all the steps again
+            if (!resume || !fs.exists(new Path(corpus, "part-00000"))) {
+                long start = System.nanoTime();
+                new SampleCorpus(conf.getInt(SAMPLE_WORDS, 50000), conf.getDouble(SAMPLE_EXPONENT, 1.0), 0.1, 42)
+                        .write(conf, new Path(corpus, "part-00000"), lines, NGram.order(conf));
+                System.out.println(String.format("Generated %d lines in %.2f s", lines, (System.nanoTime() - start) / 1e9));
+            }
+        } else {
+            corpus = new Path(remaining[0]);
+        }
+        if (!resume)
+            for (String output : new String[]{"output_step_00", "output_step_11", "output_step_22", "output_step_23_statistics", "output_step_33", "output_step_44", "output_step_44_partitions"})
+                fs.delete(new Path(work, output), true);
+        conf.set(INPUT, corpus.toString());
+        conf.set(ROOT, work.toString());
+        if (conf.get(Metrics.PATH) == null)
+            conf.set(Metrics.PATH, new Path(work, "metrics.json").toString());
+        String[] pipelineArgs = resume ? new String[]{"-local", "-resume"} : new String[]{"-local"};
+        System.exit(ToolRunner.run(conf, new LocalPipeline(), pipelineArgs));
+    }
+}
@@ -9,92 +9,137 @@ import com.amazonaws.services.elasticmapreduce.model.*;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Starts an EMR cluster that runs the pipeline - one EMR step per pipeline step, all of them
+ * running the Pipeline driver of the same job jar.
+ * <p>
+ * Usage: Main [-properties file] [-D key=value ...]
+ * <p>
+ * The cluster.* settings describe the cluster, every other setting (pipeline.*, step1.*, mapreduce.* ...)
+ * is passed to the steps as -D key=value. Every step writes its own metrics report (metricsPath).
+ */
 public class Main {
+    // Job jar with all the steps (the shaded jar of mvn package)
+    public static final String JAR = "cluster.jar";
+    // Number of instances, and the instance type of the master and of the core nodes
+    public static final String INSTANCES = "cluster.instances";
+    public static final String INSTANCE_TYPE = "cluster.instance-type";
+    public static final String RELEASE_LABEL = "cluster.release-label";
+    public static final String REGION = "cluster.region";
+    public static final String AVAILABILITY_ZONE = "cluster.availability-zone";
+    public static final String KEY_NAME = "cluster.key-name";
+    public static final String LOG_URI = "cluster.log-uri";
+    // The pipeline steps, run in order (default - step1 step2 step3 step4)
+    public static final String STEPS = "cluster.steps";
+    // What EMR does when a step fails (default TERMINATE_JOB_FLOW) - with pipeline.resume=true a new
+    // cluster resumes from the manifests of the steps that succeeded
+    public static final String ACTION_ON_FAILURE = "cluster.action-on-failure";
+
     public static AWSCredentialsProvider credentialsProvider;
     public static AmazonS3 S3;
     public static AmazonEC2 ec2;
     public static AmazonElasticMapReduce emr;
 
-    public static int numberOfInstances = 10;
+    public static void main(String[] args) throws IOException {
+        Properties settings = new Properties();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-properties") && i + 1 < args.length) {
+                try (InputStream in = new FileInputStream(args[++i])) {
+                    settings.load(in);
+                }
+            } else if (args[i].equals("-D") && i + 1 < args.length) {
+                String[] keyValue = args[++i].split("=", 2);
+                settings.setProperty(keyValue[0], keyValue.length > 1 ? keyValue[1] : "");
+            } else {
+                System.err.println("Usage: Main [-properties <file>] [-D key=value ...]");
+                System.exit(2);
+            }
+        }
+        String region = settings.getProperty(REGION, "us-east-1");
 
-    public static void main(String[]args){
         credentialsProvider = new ProfileCredentialsProvider();
         System.out.println("[INFO] Connecting to aws");
         ec2 = AmazonEC2ClientBuilder.standard()
                 .withCredentials(credentialsProvider)
-                .withRegion("us-east-1")
+                .withRegion(region)
                 .build();
         S3 = AmazonS3ClientBuilder.standard()
                 .withCredentials(credentialsProvider)
-                .withRegion("us-east-1")
+                .withRegion(region)
                 .build();
         emr = AmazonElasticMapReduceClientBuilder.standard()
                 .withCredentials(credentialsProvider)
-                .withRegion("us-east-1")
+                .withRegion(region)
                 .build();
         System.out.println( "list cluster");
         System.out.println( emr.listClusters());
 
-		// Step 1
-        HadoopJarStepConfig step1 = new HadoopJarStepConfig()
-                .withJar("s3://bucket163897429777/jars/step1/MapReduceProject.jar")
-                .withMainClass("Step1");
-
-        StepConfig stepConfig1 = new StepConfig()
-                .withName("Step1")
-                .withHadoopJarStep(step1)
-                .withActionOnFailure("TERMINATE_JOB_FLOW");
-		// Step 2
-        HadoopJarStepConfig step2 = new HadoopJarStepConfig()
-                .withJar("s3://bucket163897429777/jars/step2/MapReduceProject.jar")
-                .withMainClass("Step2");
-
-        StepConfig stepConfig2 = new StepConfig()
-                .withName("Step2")
-                .withHadoopJarStep(step2)
-                .withActionOnFailure("TERMINATE_JOB_FLOW");
-		// Step 3
-        HadoopJarStepConfig step3 = new HadoopJarStepConfig()
-                .withJar("s3://bucket163897429777/jars/step3/MapReduceProject.jar")
-                .withMainClass("Step3");
-
-        StepConfig stepConfig3 = new StepConfig()
-                .withName("Step3")
-                .withHadoopJarStep(step3)
-                .withActionOnFailure("TERMINATE_JOB_FLOW");
-		//Step 4
-        HadoopJarStepConfig step4 = new HadoopJarStepConfig()
-                .withJar("s3://bucket163897429777/jars/step4/MapReduceProject.jar")
-                .withMainClass("Step4");
-
-        StepConfig stepConfig4 = new StepConfig()
-                .withName("Step4")
-                .withHadoopJarStep(step4)
-                .withActionOnFailure("TERMINATE_JOB_FLOW");
+        // The settings of the steps
+        List<String> stepArgs = new ArrayList<>();
+        for (String key : settings.stringPropertyNames()) {
+            if (!key.startsWith("cluster.") && !key.equals(Metrics.PATH)) {
+                stepArgs.add("-D");
+                stepArgs.add(key + "=" + settings.getProperty(key));
+            }
+        }
+        List<StepConfig> steps = new ArrayList<>();
+        for (String step : settings.getProperty(STEPS, "step1 step2 step3 step4").trim().split("\\s+")) {
+            List<String> pipelineArgs = new ArrayList<>(stepArgs);
+            if (settings.getProperty(Metrics.PATH) != null) {
+                pipelineArgs.add("-D");
+                pipelineArgs.add(Metrics.PATH + "=" + metricsPath(settings.getProperty(Metrics.PATH), step));
+            }
+            pipelineArgs.add(step);
+            HadoopJarStepConfig jarStep = new HadoopJarStepConfig()
+                    .withJar(settings.getProperty(JAR, "s3://bucket163897429777/jars/MapReduceProject.jar"))
+                    .withMainClass("Pipeline")
+                    .withArgs(pipelineArgs);
+            steps.add(new StepConfig()
+                    .withName(step)
+                    .withHadoopJarStep(jarStep)
+                    .withActionOnFailure(settings.getProperty(ACTION_ON_FAILURE, "TERMINATE_JOB_FLOW")));
+        }
 
         //Job flow
+        String instanceType = settings.getProperty(INSTANCE_TYPE, InstanceType.M4Large.toString());
         JobFlowInstancesConfig instances = new JobFlowInstancesConfig()
-                .withInstanceCount(numberOfInstances)
-                .withMasterInstanceType(InstanceType.M4Large.toString())
-                .withSlaveInstanceType(InstanceType.M4Large.toString())
-                .withHadoopVersion("2.9.2")
-                .withEc2KeyName("vockey")
+                .withInstanceCount(Integer.parseInt(settings.getProperty(INSTANCES, "10")))
+                .withMasterInstanceType(instanceType)
+                .withSlaveInstanceType(instanceType)
+                .withEc2KeyName(settings.getProperty(KEY_NAME, "vockey"))
                 .withKeepJobFlowAliveWhenNoSteps(false)
-                .withPlacement(new PlacementType("us-east-1a"));
+                .withPlacement(new PlacementType(settings.getProperty(AVAILABILITY_ZONE, "us-east-1a")));
 
         System.out.println("Set steps");
         RunJobFlowRequest runFlowRequest = new RunJobFlowRequest()
                 .withName("Map reduce project")
                 .withInstances(instances)
-                .withSteps(stepConfig1, stepConfig2, stepConfig3, stepConfig4)
-                .withLogUri("s3://bucket163897429777/logs/")
+                .withSteps(steps)
+                .withLogUri(settings.getProperty(LOG_URI, "s3://bucket163897429777/logs/"))
                 .withServiceRole("EMR_DefaultRole")
                 .withJobFlowRole("EMR_EC2_DefaultRole")
-                .withReleaseLabel("emr-5.11.0");
+                .withReleaseLabel(settings.getProperty(RELEASE_LABEL, "emr-5.11.0"));
 
         RunJobFlowResult runJobFlowResult = emr.runJobFlow(runFlowRequest);
         String jobFlowId = runJobFlowResult.getJobFlowId();
         System.out.println("Ran job flow with id: " + jobFlowId);
     }
-}
 
+    /**
+     * The metrics report of one step - every step runs in its own JVM, which rewrites its report after
+     * every job, so s3://bucket/metrics/run.json becomes s3://bucket/metrics/run-step1.json, ...
+     */
+    static String metricsPath(String path, String step) {
+        int dot = path.lastIndexOf('.');
+        if (dot <= path.lastIndexOf('/'))
+            return path + "-" + step;
+        return path.substring(0, dot) + "-" + step + path.substring(dot);
+    }
+}
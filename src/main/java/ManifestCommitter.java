@@ -0,0 +1,162 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.JobStatus;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputCommitter;
+import org.apache.hadoop.util.LineReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Commits the output of BlockOutputFormat by manifest instead of by rename - nothing is copied.
+ * <p>
+ * The writers of a task attempt upload their files straight into the output directory, under names
+ * unique to the attempt, and list every file in _manifests/attemptId.name before its upload starts.
+ * 1) commitTask - the listings of the attempt become the manifest of its task, _manifests/taskId.
+ * 2) abortTask - the files of the attempt are deleted, its listings are kept for abortJob.
+ * 3) commitJob - every file of the task manifests is checked (it is there with its length), the
+ * files of the other attempts are deleted, and _SUCCESS is written with the list of the files.
+ * 4) abortJob - every file of the listings and of the task manifests is deleted, then _manifests.
+ * <p>
+ * A manifest line is "name \t length".
+ */
+public class ManifestCommitter extends OutputCommitter {
+    public static final String MANIFESTS = "_manifests";
+
+    private final Path output;
+
+    public ManifestCommitter(Path output) {
+        this.output = output;
+    }
+
+    /**
+     * Where a writer of the attempt lists the files it wrote.
+     */
+    public static Path listing(Path output, TaskAttemptContext context, String name) {
+        return new Path(new Path(output, MANIFESTS), context.getTaskAttemptID() + "." + name);
+    }
+
+    @Override
+    public void setupJob(JobContext context) throws IOException {
+        output.getFileSystem(context.getConfiguration()).mkdirs(new Path(output, MANIFESTS));
+    }
+
+    @Override
+    public void setupTask(TaskAttemptContext context) {
+    }
+
+    /**
+     * Only the attempts that wrote files - not the map tasks of a job with reducers.
+     */
+    @Override
+    public boolean needsTaskCommit(TaskAttemptContext context) throws IOException {
+        return listings(output.getFileSystem(context.getConfiguration()), context).length > 0;
+    }
+
+    @Override
+    public void commitTask(TaskAttemptContext context) throws IOException {
+        FileSystem fs = output.getFileSystem(context.getConfiguration());
+        StringBuilder manifest = new StringBuilder();
+        FileStatus[] listings = listings(fs, context);
+        for (FileStatus listing : listings)
+            for (Map.Entry<String, Long> file : read(fs, listing.getPath(), context.getConfiguration()).entrySet())
+                manifest.append(file.getKey()).append('\t').append(file.getValue()).append('\n');
+        write(fs, new Path(new Path(output, MANIFESTS), context.getTaskAttemptID().getTaskID().toString()), manifest);
+        for (FileStatus listing : listings)
+            fs.delete(listing.getPath(), false);
+    }
+
+    /**
+     * Deletes the files of the attempt - the listings stay, abortJob deletes their files again in
+     * case an upload of the attempt was still running.
+     */
+    @Override
+    public void abortTask(TaskAttemptContext context) throws IOException {
+        FileSystem fs = output.getFileSystem(context.getConfiguration());
+        for (FileStatus listing : listings(fs, context))
+            delete(fs, listing.getPath(), context.getConfiguration());
+    }
+
+    @Override
+    public void commitJob(JobContext context) throws IOException {
+        Configuration conf = context.getConfiguration();
+        FileSystem fs = output.getFileSystem(conf);
+        Path manifests = new Path(output, MANIFESTS);
+        Map<String, Long> files = new TreeMap<>();
+        for (FileStatus manifest : fs.listStatus(manifests))
+            if (manifest.getPath().getName().startsWith("task_"))
+                files.putAll(read(fs, manifest.getPath(), conf));
+        // The files of the attempts that failed or were not committed
+        for (FileStatus status : fs.listStatus(output)) {
+            String name = status.getPath().getName();
+            if (!name.startsWith("_") && !name.startsWith(".") && !files.containsKey(name))
+                fs.delete(status.getPath(), true);
+        }
+        StringBuilder success = new StringBuilder();
+        for (Map.Entry<String, Long> file : files.entrySet()) {
+            Path path = new Path(output, file.getKey());
+            if (!fs.exists(path) || fs.getFileStatus(path).getLen() != file.getValue())
+                throw new IOException("Committed file " + path + " is missing or does not have " + file.getValue() + " bytes");
+            success.append(file.getKey()).append('\t').append(file.getValue()).append('\n');
+        }
+        if (conf.getBoolean(FileOutputCommitter.SUCCESSFUL_JOB_OUTPUT_DIR_MARKER, true))
+            write(fs, new Path(output, FileOutputCommitter.SUCCEEDED_FILE_NAME), success);
+        fs.delete(manifests, true);
+    }
+
+    /**
+     * Deletes the files of every attempt (the listings) and of every committed task (the task manifests).
+     */
+    @Override
+    public void abortJob(JobContext context, JobStatus.State state) throws IOException {
+        Configuration conf = context.getConfiguration();
+        FileSystem fs = output.getFileSystem(conf);
+        Path manifests = new Path(output, MANIFESTS);
+        if (fs.exists(manifests))
+            for (FileStatus manifest : fs.listStatus(manifests))
+                delete(fs, manifest.getPath(), conf);
+        fs.delete(manifests, true);
+    }
+
+    /**
+     * Deletes the files of a listing or a task manifest.
+     */
+    private void delete(FileSystem fs, Path manifest, Configuration conf) throws IOException {
+        for (String name : read(fs, manifest, conf).keySet())
+            fs.delete(new Path(output, name), false);
+    }
+
+    private FileStatus[] listings(FileSystem fs, TaskAttemptContext context) throws IOException {
+        FileStatus[] listings = fs.globStatus(new Path(new Path(output, MANIFESTS), context.getTaskAttemptID() + ".*"));
+        return listings == null ? new FileStatus[0] : listings;
+    }
+
+    private static Map<String, Long> read(FileSystem fs, Path manifest, Configuration conf) throws IOException {
+        Map<String, Long> files = new TreeMap<>();
+        try (InputStream in = fs.open(manifest)) {
+            LineReader reader = new LineReader(in, conf);
+            Text line = new Text();
+            while (reader.readLine(line) > 0) {
+                String[] file = line.toString().split("\t"); // [name, length]
+                files.put(file[0], Long.parseLong(file[1]));
+            }
+        }
+        return files;
+    }
+
+    private static void write(FileSystem fs, Path path, CharSequence content) throws IOException {
+        try (FSDataOutputStream out = fs.create(path, true)) {
+            out.write(content.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,111 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.CounterGroup;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.TaskCounter;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The JSON metrics report of the jobs run by this process - the wall time and every counter group
+ * of every job (the framework counters and the Step1.Counter, Step2.Counter, ... groups), and the
+ * reduction of its combiner (the framework combiner and the AdaptiveCombiner).
+ * <p>
+ * The drivers run their jobs with waitForCompletion, which rewrites the report after every job
+ * when PATH is set:
+ * {"seconds": total, "steps": [{"name": "Step1", "succeeded": true, "seconds": 12.5,
+ * "combinerReduction": 0.42, "counters": {"group": {"COUNTER": value, ...}, ...}}, ...]}
+ */
+public class Metrics {
+    // Where the report is written (none when unset) - one file per process, Main gives every EMR step its own
+    public static final String PATH = "pipeline.metrics.path";
+
+    private static final List<String> steps = new ArrayList<>();
+    private static double seconds = 0;
+
+    /**
+     * Runs the job, adds it to the report and writes the report.
+     */
+    public static boolean waitForCompletion(Job job, boolean verbose) throws IOException, InterruptedException, ClassNotFoundException {
+        long start = System.nanoTime();
+        boolean succeeded = job.waitForCompletion(verbose);
+        double jobSeconds = (System.nanoTime() - start) / 1e9;
+        synchronized (steps) {
+            steps.add(toJson(job, succeeded, jobSeconds));
+            seconds += jobSeconds;
+            write(job.getConfiguration());
+        }
+        return succeeded;
+    }
+
+    private static String toJson(Job job, boolean succeeded, double seconds) throws IOException {
+        Counters counters = job.getCounters();
+        StringBuilder json = new StringBuilder();
+        json.append("{\"name\": ").append(quote(job.getJobName()))
+                .append(", \"succeeded\": ").append(succeeded)
+                .append(", \"seconds\": ").append(seconds);
+        if (counters == null)
+            return json.append('}').toString();
+        long combineInput = counters.findCounter(TaskCounter.COMBINE_INPUT_RECORDS).getValue()
+                + value(counters, AdaptiveCombiner.Counter.INPUT_RECORDS);
+        long combineOutput = counters.findCounter(TaskCounter.COMBINE_OUTPUT_RECORDS).getValue()
+                + value(counters, AdaptiveCombiner.Counter.OUTPUT_RECORDS);
+        if (combineInput > 0)
+            json.append(", \"combinerReduction\": ").append(1 - (double) combineOutput / combineInput);
+        json.append(", \"counters\": {");
+        boolean firstGroup = true;
+        for (CounterGroup group : counters) {
+            json.append(firstGroup ? "" : ", ").append(quote(group.getName())).append(": {");
+            firstGroup = false;
+            boolean first = true;
+            for (Counter counter : group) {
+                json.append(first ? "" : ", ").append(quote(counter.getName())).append(": ").append(counter.getValue());
+                first = false;
+            }
+            json.append('}');
+        }
+        return json.append("}}").toString();
+    }
+
+    /**
+     * The value of a counter - without adding its group to the counters of a job that has none.
+     */
+    private static long value(Counters counters, Enum<?> key) {
+        for (CounterGroup group : counters)
+            if (group.getName().equals(key.getDeclaringClass().getName()))
+                return group.findCounter(key.name()).getValue();
+        return 0;
+    }
+
+    private static String quote(String s) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\')
+                quoted.append('\\').append(c);
+            else if (c < 0x20)
+                quoted.append(String.format("\\u%04x", (int) c));
+            else
+                quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static void write(Configuration conf) throws IOException {
+        if (conf.get(PATH) == null)
+            return;
+        Path path = new Path(conf.get(PATH));
+        try (Writer out = new OutputStreamWriter(path.getFileSystem(conf).create(path, true), StandardCharsets.UTF_8)) {
+            out.write("{\"seconds\": " + seconds + ", \"steps\": [\n");
+            for (int i = 0; i < steps.size(); i++)
+                out.write("  " + steps.get(i) + (i + 1 < steps.size() ? ",\n" : "\n"));
+            out.write("]}\n");
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * MurmurHash3 x86 32 bit over a byte range.
+ */
+public final class MurmurHash3 {
+    private static final int C1 = 0xcc9e2d51;
+    private static final int C2 = 0x1b873593;
+
+    private MurmurHash3() {
+    }
+
+    @SuppressWarnings("fallthrough") // the tail bytes are mixed in from the last one down
+    public static int hash(byte[] data, int offset, int length, int seed) {
+        int h = seed;
+        int end = offset + (length & ~3);
+        for (int i = offset; i < end; i += 4) {
+            int k = (data[i] & 0xff) | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff) << 16 | data[i + 3] << 24;
+            h ^= mixK(k);
+            h = Integer.rotateLeft(h, 13) * 5 + 0xe6546b64;
+        }
+        int k = 0;
+        switch (length & 3) {
+            case 3:
+                k ^= (data[end + 2] & 0xff) << 16;
+            case 2:
+                k ^= (data[end + 1] & 0xff) << 8;
+            case 1:
+                k ^= data[end] & 0xff;
+                h ^= mixK(k);
+        }
+        return fmix(h ^ length);
+    }
+
+    public static int hash(long value, int seed) {
+        int h = seed;
+        h ^= mixK((int) value);
+        h = Integer.rotateLeft(h, 13) * 5 + 0xe6546b64;
+        h ^= mixK((int) (value >>> 32));
+        h = Integer.rotateLeft(h, 13) * 5 + 0xe6546b64;
+        return fmix(h ^ 8);
+    }
+
+    private static int mixK(int k) {
+        k *= C1;
+        k = Integer.rotateLeft(k, 15);
+        return k * C2;
+    }
+
+    private static int fmix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+}
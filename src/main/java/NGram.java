@@ -0,0 +1,42 @@
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * The n-gram order of the pipeline, and the split of an n-gram "w1 .. wn" into its context
+ * "w1 .. wn-1" and its prediction wn, over the bytes of the n-gram.
+ * <p>
+ * The steps key the n-grams by their bytes (Text, TaggedKey, ProbabilityKey) whatever the order -
+ * only the corpus parser (CorpusLine) takes the first ORDER words of a line, and Step4 and the
+ * single-node engine group by the context.
+ */
+public class NGram {
+    // Order of the n-grams - 2 for a 2-gram knowledge base, 3 (default) for 3-grams, ...
+    public static final String ORDER = "pipeline.ngram.order";
+
+    public static int order(Configuration conf) {
+        int order = conf.getInt(ORDER, 3);
+        if (order < 1)
+            throw new IllegalArgumentException(ORDER + " must be at least 1: " + order);
+        return order;
+    }
+
+    /**
+     * Length of the context of an n-gram - everything before its last space, 0 for a 1-gram.
+     */
+    public static int contextLength(byte[] bytes, int start, int length) {
+        return Math.max(0, lastSpace(bytes, start, length) - start);
+    }
+
+    /**
+     * Start of the prediction of an n-gram - the byte after its last space.
+     */
+    public static int predictionStart(byte[] bytes, int start, int length) {
+        return lastSpace(bytes, start, length) + 1;
+    }
+
+    private static int lastSpace(byte[] bytes, int start, int length) {
+        for (int i = start + length - 1; i >= start; i--)
+            if (bytes[i] == ' ')
+                return i;
+        return start - 1;
+    }
+}
@@ -0,0 +1,222 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.MRJobConfig;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * The driver of the pipeline - runs the given steps (all of them by default) with the settings of
+ * a properties file, then of the generic options (-D key=value, -conf ...), on top of it.
+ * <p>
+ * Usage: Pipeline [-properties file] [generic options] [-local] [-resume] [step0 | step1 | step2 | step3 | step23 | step4 ...]
+ * <p>
+ * The corpus is INPUT and every step reads and writes output_step_XX under ROOT. Any Hadoop key
+ * can be set as well - map split size (mapreduce.input.fileinputformat.split.maxsize), map output
+ * compression (mapreduce.map.output.compress), memory (mapreduce.map.memory.mb, ...) and the keys
+ * of the steps. -local runs the jobs in this JVM on the local file system (LocalPipeline adds a
+ * generated corpus and a throughput report to it).
+ * <p>
+ * Every job writes a manifest to its output, and -resume (Checkpoint.RESUME) skips the jobs whose
+ * output is complete - a failed run restarts from the first incomplete job.
+ */
+public class Pipeline extends Configured implements Tool {
+    // The corpus - the input of Step0 and Step1
+    public static final String INPUT = "pipeline.input";
+    // Directory of output_step_00 .. output_step_44
+    public static final String ROOT = "pipeline.root";
+    // Number of reducers of a step - pipeline.step1.reduces, pipeline.step2.reduces, ...
+    public static final String REDUCES = "pipeline.%s.reduces";
+    // Whether a step runs its combiner - pipeline.step1.combiner, ... (default true)
+    public static final String COMBINER = "pipeline.%s.combiner";
+    // Run step23 instead of step2 and step3 when no steps are given
+    public static final String FUSED = "pipeline.fused";
+
+    public static final String[] STEPS = {"step0", "step1", "step2", "step3", "step23", "step4"};
+
+    @Override
+    public int run(String[] args) throws Exception {
+        Configuration conf = getConf();
+        List<String> steps = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("-resume")) {
+                conf.setBoolean(Checkpoint.RESUME, true);
+            } else if (arg.equals("-local")) {
+                conf.set("mapreduce.framework.name", "local");
+                conf.set("fs.defaultFS", "file:///");
+            } else if (Arrays.asList(STEPS).contains(arg)) {
+                steps.add(arg);
+            } else {
+                System.err.println("Unknown step " + arg);
+                return usage();
+            }
+        }
+        if (conf.get("mapreduce.framework.name", "").equals("local") && (conf.get(INPUT) == null || conf.get(ROOT) == null)) {
+            System.err.println(INPUT + " and " + ROOT + " must be set with -local");
+            return usage();
+        }
+        if (steps.isEmpty()) {
+            if (Vocabulary.isEnabled(conf))
+                steps.add("step0");
+            steps.add("step1");
+            steps.addAll(conf.getBoolean(FUSED, false) ? Arrays.asList("step23") : Arrays.asList("step2", "step3"));
+            steps.add("step4");
+        }
+        for (String step : steps)
+            if (!run(step))
+                return 1;
+        return 0;
+    }
+
+    private boolean run(String step) throws Exception {
+        Configuration conf = new Configuration(getConf());
+        if (conf.get(String.format(REDUCES, step)) != null)
+            conf.setInt(MRJobConfig.NUM_REDUCES, conf.getInt(String.format(REDUCES, step), 1));
+        Path input = new Path(conf.get(INPUT, "s3://datasets.elasticmapreduce/ngrams/books/20090715/eng-us-all/3gram/data"));
+        Path root = new Path(conf.get(ROOT, "s3://bucket163897429777"));
+        Path step00 = new Path(root, "output_step_00"), step11 = new Path(root, "output_step_11"), step22 = new Path(root, "output_step_22");
+        Path statistics = new Path(root, "output_step_23_statistics"), step33 = new Path(root, "output_step_33"), step44 = new Path(root, "output_step_44");
+        Path table = new Path(conf.get(ProbabilityTable.PATH, new Path(root, "probability_table").toString()));
+        Checkpoint checkpoint = new Checkpoint(conf, files(conf, step), settings(step));
+        switch (step) {
+            case "step0":
+                Path vocabulary = new Path(conf.get(Vocabulary.PATH, new Path(root, "vocabulary.txt").toString()));
+                // A resumed run keeps the vocabulary - rewriting it would run Step1 and Step4 again
+                boolean complete = checkpoint.isComplete(step00, input) && vocabulary.getFileSystem(conf).exists(vocabulary);
+                if (!run(step, checkpoint, () -> Step0.createJob(conf, input, step00), step00, input))
+                    return false;
+                if (!complete)
+                    Vocabulary.write(conf, step00, vocabulary);
+                return true;
+            case "step1":
+                return run(step, checkpoint, () -> Step1.createJob(conf, input, step11), step11, input);
+            case "step2":
+                return run(step, checkpoint, () -> Step2.createJob(conf, step11, step22), step22, step11);
+            case "step3":
+                if (!run(step, checkpoint, () -> Step3.createJob(conf, step22, step33), step33, step22))
+                    return false;
+                ProbabilityTable.export(conf, new Path(step22, Step2.STATISTICS + "-*"), table);
+                return true;
+            case "step23":
+                if (!run(step, checkpoint, () -> Step23.createStatisticsJob(conf, step11, statistics), statistics, step11)
+                        || !run(step, checkpoint, () -> Step23.createJoinJob(conf, step11, statistics, step33), step33, step11, statistics))
+                    return false;
+                ProbabilityTable.export(conf, statistics, table);
+                return true;
+            default: // step4
+                return run(step, checkpoint, () -> Step4.createJob(conf, step33, step44), step44, step33);
+        }
+    }
+
+    /**
+     * The files a step reads besides its input - the vocabulary of Step1 and Step4.
+     */
+    private static Path[] files(Configuration conf, String step) {
+        if ((step.equals("step1") || step.equals("step4")) && Vocabulary.isEnabled(conf))
+            return new Path[]{new Path(conf.get(Vocabulary.PATH))};
+        return new Path[0];
+    }
+
+    /**
+     * The settings that change the output of a step, recorded in its manifest - a changed one makes the
+     * step run again on resume (and the steps after it, whose input changes).
+     */
+    private static String[] settings(String step) {
+        List<String> settings = new ArrayList<>(Arrays.asList(NGram.ORDER, IntermediateFormat.FORMAT));
+        switch (step) {
+            case "step0":
+                settings.addAll(Arrays.asList(CorpusLine.MIN_YEAR, CorpusLine.MAX_YEAR));
+                break;
+            case "step1":
+                settings.addAll(Arrays.asList(CorpusLine.MIN_YEAR, CorpusLine.MAX_YEAR, Step1.SPLITTER_CLASS,
+                        HashCorpusSplitter.SEED, HashCorpusSplitter.BY_OFFSET));
+                break;
+            case "step2":
+                settings.addAll(Arrays.asList(RSketch.ENABLED, RSketch.EXACT_LIMIT, RSketch.WIDTH, RSketch.DEPTH));
+                break;
+            case "step3":
+            case "step23":
+                settings.add(IntermediateFormat.BINARY_PROBABILITIES);
+                break;
+            default: // step4
+                settings.addAll(Arrays.asList(Step4.TOP_K, Step4.MIN_PROBABILITY, Step4.TOTAL_ORDER));
+        }
+        return settings.toArray(new String[0]);
+    }
+
+    /**
+     * Runs a job unless its output is complete (Checkpoint), and writes the manifest of its output.
+     */
+    private boolean run(String step, Checkpoint checkpoint, JobFactory factory, Path output, Path... inputs) throws Exception {
+        if (checkpoint.isComplete(output, inputs)) {
+            System.out.println("Skipping " + step + " - " + output + " is complete");
+            return true;
+        }
+        checkpoint.clear(output);
+        Job job = factory.create();
+        if (!job.getConfiguration().getBoolean(String.format(COMBINER, step), true)) {
+            job.getConfiguration().unset(MRJobConfig.COMBINE_CLASS_ATTR);
+            job.getConfiguration().setBoolean(AdaptiveCombiner.ENABLED, false);
+        }
+        long start = System.nanoTime();
+        if (!Metrics.waitForCompletion(job, true))
+            return false;
+        completed(job, (System.nanoTime() - start) / 1e9);
+        checkpoint.write(job, inputs);
+        return true;
+    }
+
+    /**
+     * Called after every job that ran and succeeded (not the skipped ones) - LocalPipeline reports its throughput.
+     */
+    protected void completed(Job job, double seconds) throws IOException {
+    }
+
+    private interface JobFactory {
+        Job create() throws Exception;
+    }
+
+    private static int usage() {
+        System.err.println("Usage: Pipeline [-properties <file>] [generic options] [-local] [-resume] [step0 | step1 | step2 | step3 | step23 | step4 ...]");
+        ToolRunner.printGenericCommandUsage(System.err);
+        return 2;
+    }
+
+    /**
+     * Runs one step - the mains of the steps.
+     */
+    public static void main(String step, String[] args) throws Exception {
+        String[] withStep = Arrays.copyOf(args, args.length + 1);
+        withStep[args.length] = step;
+        main(withStep);
+    }
+
+    /**
+     * The entry point of the job jar.
+     */
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        List<String> remaining = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-properties") && i + 1 < args.length) {
+                Properties properties = new Properties();
+                try (InputStream in = new FileInputStream(args[++i])) {
+                    properties.load(in);
+                }
+                for (String key : properties.stringPropertyNames())
+                    conf.set(key, properties.getProperty(key), args[i]);
+            } else
+                remaining.add(args[i]);
+        }
+        System.exit(ToolRunner.run(conf, new Pipeline(), remaining.toArray(new String[0])));
+    }
+}
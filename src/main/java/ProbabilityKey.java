@@ -0,0 +1,146 @@
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Binary secondary sort key of Step4.
+ * <p>
+ * Serialized layout: context "w1 .. wn-1" (Text) | probability (8 bytes) | wn (Text)
+ * <p>
+ * Keys are sorted by the context ascending, then by probability descending, then by wn,
+ * which is the order of the knowledge base.
+ */
+public class ProbabilityKey implements WritableComparable<ProbabilityKey> {
+    private static final byte[] SPACE = {' '};
+
+    private final Text context = new Text();
+    private double probability;
+    private final Text word = new Text();
+
+    public ProbabilityKey() {
+    }
+
+    /**
+     * @param trigram "w1 .. wn" - split by NGram into its context and its prediction
+     */
+    public ProbabilityKey set(byte[] trigram, int start, int len, double probability) {
+        context.set(trigram, start, NGram.contextLength(trigram, start, len));
+        int prediction = NGram.predictionStart(trigram, start, len);
+        word.set(trigram, prediction, start + len - prediction);
+        this.probability = probability;
+        return this;
+    }
+
+    /**
+     * A key that sorts before every 3-gram of the given context, used as a partition boundary.
+     */
+    public ProbabilityKey setBoundary(Text context) {
+        this.context.set(context);
+        this.probability = Double.POSITIVE_INFINITY;
+        this.word.clear();
+        return this;
+    }
+
+    public Text getContext() {
+        return context;
+    }
+
+    public double getProbability() {
+        return probability;
+    }
+
+    public Text getWord() {
+        return word;
+    }
+
+    /**
+     * Writes "w1 .. wn" into the given Text.
+     */
+    public Text getTrigram(Text trigram) {
+        trigram.set(context.getBytes(), 0, context.getLength());
+        if (context.getLength() > 0) // not a 1-gram
+            trigram.append(SPACE, 0, 1);
+        trigram.append(word.getBytes(), 0, word.getLength());
+        return trigram;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        context.write(out);
+        out.writeDouble(probability);
+        word.write(out);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        context.readFields(in);
+        probability = in.readDouble();
+        word.readFields(in);
+    }
+
+    @Override
+    public int compareTo(ProbabilityKey other) {
+        int cmp = context.compareTo(other.context);
+        if (cmp != 0)
+            return cmp;
+        cmp = Double.compare(other.probability, probability); // descending
+        if (cmp != 0)
+            return cmp;
+        return word.compareTo(other.word);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ProbabilityKey && compareTo((ProbabilityKey) o) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return context.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %s %s", context, word, probability);
+    }
+
+    /**
+     * Compares two serialized keys without deserializing them.
+     */
+    public static class Comparator extends WritableComparator {
+        public Comparator() {
+            super(ProbabilityKey.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            try {
+                int n1 = WritableUtils.decodeVIntSize(b1[s1]), c1 = readVInt(b1, s1);
+                int n2 = WritableUtils.decodeVIntSize(b2[s2]), c2 = readVInt(b2, s2);
+                int cmp = compareBytes(b1, s1 + n1, c1, b2, s2 + n2, c2);
+                if (cmp != 0)
+                    return cmp;
+                int p1 = s1 + n1 + c1, p2 = s2 + n2 + c2;
+                cmp = Double.compare(readDouble(b2, p2), readDouble(b1, p1)); // descending
+                if (cmp != 0)
+                    return cmp;
+                p1 += 8;
+                p2 += 8;
+                int m1 = WritableUtils.decodeVIntSize(b1[p1]);
+                int m2 = WritableUtils.decodeVIntSize(b2[p2]);
+                return compareBytes(b1, p1 + m1, s1 + l1 - p1 - m1, b2, p2 + m2, s2 + l2 - p2 - m2);
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+    }
+
+    static {
+        WritableComparator.define(ProbabilityKey.class, new Comparator());
+    }
+}
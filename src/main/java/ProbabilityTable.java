@@ -0,0 +1,153 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The probability of every r, computed once from the deleted estimation statistics - the probability
+ * of a 3-gram depends only on its r, so the joins look it up instead of dividing for every 3-gram.
+ * Every probability is kept as a double and as the text Step3 writes. An undefined probability (no
+ * N_r_0 + N_r_1) is 0, its binary Step3 value is NaN so Step4 writes it as 0 like the text output.
+ * <p>
+ * The Pipeline driver exports the table after Step3 / Step23 to PATH, so a service can compute
+ * P(w3 | w1, w2) from the r of a 3-gram without a probability stored for every 3-gram. The file is
+ * fixed width and sorted by r, for a binary search:
+ * int MAGIC, long N, int size, then size records of long r, double probability, boolean defined (17 bytes)
+ */
+public class ProbabilityTable {
+    // File the table is exported to (default probability_table under the pipeline root)
+    public static final String PATH = "pipeline.probability-table";
+
+    private static final int MAGIC = 0x52505432; // RPT2
+    private static final Text ZERO = new Text(String.valueOf(0));
+
+    private final long N;
+    private final long[] rs;
+    private final double[] values;
+    private final boolean[] defined;
+    private final Text[] texts;
+    private final DoubleWritable binary = new DoubleWritable();
+
+    public ProbabilityTable(RStatistics statistics) {
+        N = statistics.getN();
+        rs = new long[statistics.size()];
+        values = new double[rs.length];
+        defined = new boolean[rs.length];
+        texts = new Text[rs.length];
+        for (int i = 0; i < rs.length; i++) {
+            rs[i] = statistics.getR(i);
+            values[i] = statistics.probability(rs[i]);
+            defined[i] = N != 0 && statistics.getN0(i) + statistics.getN1(i) != 0;
+            texts[i] = new Text(statistics.probabilityText(rs[i]));
+        }
+    }
+
+    private ProbabilityTable(long N, long[] rs, double[] values, boolean[] defined) {
+        this.N = N;
+        this.rs = rs;
+        this.values = values;
+        this.defined = defined;
+        texts = new Text[rs.length];
+        for (int i = 0; i < rs.length; i++)
+            texts[i] = defined[i] ? new Text(String.valueOf(values[i])) : ZERO;
+    }
+
+    public long getN() {
+        return N;
+    }
+
+    public int size() {
+        return rs.length;
+    }
+
+    public long getR(int index) {
+        return rs[index];
+    }
+
+    /**
+     * The index of r, or -1 if there are no statistics for it.
+     */
+    public int index(long r) {
+        int i = Arrays.binarySearch(rs, r);
+        return i < 0 ? -1 : i;
+    }
+
+    public double probability(int index) {
+        return index < 0 ? 0 : values[index];
+    }
+
+    /**
+     * The probability as Step3 writes it - shared, not to be modified.
+     */
+    public Text text(int index) {
+        return index < 0 ? ZERO : texts[index];
+    }
+
+    /**
+     * The Step3 output value of r - a DoubleWritable with binary probabilities (NaN if undefined),
+     * the text otherwise.
+     */
+    public Writable value(long r, boolean binaryProbabilities) {
+        int index = index(r);
+        if (!binaryProbabilities)
+            return text(index);
+        binary.set(index >= 0 && defined[index] ? values[index] : Double.NaN);
+        return binary;
+    }
+
+    /**
+     * Loads the statistics (a file, a directory or a glob of Step2 stats files or Step23 statistics)
+     * and writes their table to path.
+     */
+    public static void export(Configuration conf, Path statistics, Path path) throws IOException {
+        RStatistics loaded = new RStatistics();
+        FileStatus[] files = statistics.getFileSystem(conf).globStatus(statistics);
+        if (files != null)
+            for (FileStatus file : files)
+                loaded.load(conf, file.getPath());
+        new ProbabilityTable(loaded).write(conf, path);
+    }
+
+    public void write(Configuration conf, Path path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(path.getFileSystem(conf).create(path, true)))) {
+            out.writeInt(MAGIC);
+            out.writeLong(N);
+            out.writeInt(rs.length);
+            for (int i = 0; i < rs.length; i++) {
+                out.writeLong(rs[i]);
+                out.writeDouble(values[i]);
+                out.writeBoolean(defined[i]);
+            }
+        }
+    }
+
+    /**
+     * Reads an exported table - its texts are String.valueOf of the probabilities, 0 when undefined,
+     * like Step3 writes them.
+     */
+    public static ProbabilityTable read(Configuration conf, Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(path.getFileSystem(conf).open(path)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException(path + " is not a probability table");
+            long N = in.readLong();
+            long[] rs = new long[in.readInt()];
+            double[] values = new double[rs.length];
+            boolean[] defined = new boolean[rs.length];
+            for (int i = 0; i < rs.length; i++) {
+                rs[i] = in.readLong();
+                values[i] = in.readDouble();
+                defined[i] = in.readBoolean();
+            }
+            return new ProbabilityTable(N, rs, values, defined);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Approximate deleted estimation statistics for Step2 - N_r_0, N_r_1, T_r_01 and T_r_10 of every r
+ * in a fixed amount of memory, whatever the number of 3-grams and of r values.
+ * <p>
+ * The four tables (N 0, N 1, T 0, T 1) are exact arrays for r below EXACT_LIMIT, where most of the
+ * 3-grams are, and Count-Min sketches of DEPTH rows of WIDTH counters for the long tail of larger r.
+ * Every counter is a sum, so two sketches are merged by adding their cells - Step2 shuffles the
+ * non-zero cells of the sketch of every map task and the combiner and the reducer add them up.
+ * <p>
+ * A tail estimate is never below the exact value, and with probability 1 - e^-DEPTH it is at most
+ * e / WIDTH times the sum of the tail of its table above it (errorBound).
+ */
+public class RSketch {
+    // Approximate the statistics of Step2 with a sketch of every map task instead of N and T records
+    public static final String ENABLED = "step2.sketch";
+    // The r values below it are counted exactly (default 4096)
+    public static final String EXACT_LIMIT = "step2.sketch.exact-limit";
+    // Counters in a row of the Count-Min sketches (default 2048)
+    public static final String WIDTH = "step2.sketch.width";
+    // Rows of the Count-Min sketches (default 4)
+    public static final String DEPTH = "step2.sketch.depth";
+
+    private static final int TABLES = 4; // N 0, N 1, T 0, T 1
+
+    private final int exactLimit;
+    private final int width;
+    private final int depth;
+    // TABLES exact arrays of exactLimit cells, then TABLES sketches of depth * width cells
+    private final long[] cells;
+
+    public RSketch(int exactLimit, int width, int depth) {
+        if (exactLimit < 1 || width < 1 || depth < 1)
+            throw new IllegalArgumentException("The sketch sizes must be positive: " + exactLimit + ", " + width + ", " + depth);
+        this.exactLimit = exactLimit;
+        this.width = width;
+        this.depth = depth;
+        cells = new long[TABLES * (exactLimit + depth * width)];
+    }
+
+    public RSketch(Configuration conf) {
+        this(conf.getInt(EXACT_LIMIT, 4096), conf.getInt(WIDTH, 2048), conf.getInt(DEPTH, 4));
+    }
+
+    public static boolean isEnabled(Configuration conf) {
+        return conf.getBoolean(ENABLED, false);
+    }
+
+    public int getExactLimit() {
+        return exactLimit;
+    }
+
+    /**
+     * Adds value to the N or T statistic of split and r.
+     */
+    public void add(TaggedKey.Tag tag, int split, long r, long value) {
+        int table = table(tag, split);
+        if (r < exactLimit) {
+            cells[table * exactLimit + (int) r] += value;
+            return;
+        }
+        int base = sketchBase(table);
+        for (int row = 0; row < depth; row++)
+            cells[base + row * width + column(row, r)] += value;
+    }
+
+    /**
+     * The N or T statistic of split and r - exact below the exact limit, an upper estimate above it.
+     */
+    public long estimate(TaggedKey.Tag tag, int split, long r) {
+        int table = table(tag, split);
+        if (r < exactLimit)
+            return cells[table * exactLimit + (int) r];
+        int base = sketchBase(table);
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++)
+            estimate = Math.min(estimate, cells[base + row * width + column(row, r)]);
+        return estimate;
+    }
+
+    /**
+     * The most a tail estimate of the table exceeds its exact value, with probability 1 - e^-depth -
+     * e / width of the sum of the tail, rounded up.
+     */
+    public long errorBound(TaggedKey.Tag tag, int split) {
+        int base = sketchBase(table(tag, split));
+        long tail = 0;
+        for (int column = 0; column < width; column++)
+            tail += cells[base + column];
+        return (long) Math.ceil(Math.E / width * tail);
+    }
+
+    /**
+     * Number of cells - the cell indexes are 0 .. cells() - 1.
+     */
+    public int cells() {
+        return cells.length;
+    }
+
+    public long getCell(int cell) {
+        return cells[cell];
+    }
+
+    /**
+     * Merges a cell of another sketch of the same sizes.
+     */
+    public void addCell(int cell, long value) {
+        cells[cell] += value;
+    }
+
+    private static int table(TaggedKey.Tag tag, int split) {
+        return (tag == TaggedKey.Tag.N ? 0 : 2) + split;
+    }
+
+    private int sketchBase(int table) {
+        return TABLES * exactLimit + table * depth * width;
+    }
+
+    private int column(int row, long r) {
+        return (MurmurHash3.hash(r, row) & Integer.MAX_VALUE) % width;
+    }
+}
@@ -0,0 +1,231 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.LineReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The deleted estimation parameters of every r, kept in sorted primitive arrays.
+ * <p>
+ * Loaded from TaggedKey / LongWritable SequenceFiles, or from text lines in the Step2 output format:
+ * 1) <** **> or <** r> \t N
+ * 2) <N 0 r> \t N_r_0, <N 1 r> \t N_r_1
+ * 3) <T 0 r> \t T_r_01, <T 1 r> \t T_r_10
+ * Every other line (3-grams) is skipped.
+ */
+public class RStatistics {
+    private long N = 0;
+    private long[] rs = new long[1024];
+    private long[] N0 = new long[1024];
+    private long[] N1 = new long[1024];
+    private long[] T0 = new long[1024];
+    private long[] T1 = new long[1024];
+    private int size = 0;
+    private boolean sorted = true;
+    // r -> index, only while records are added
+    private HashMap<Long, Integer> index = new HashMap<>();
+
+    public long getN() {
+        return N;
+    }
+
+    public void setN(long N) {
+        this.N = N;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds the value of one statistics record, the values of the same record are summed.
+     */
+    public void add(TaggedKey.Tag tag, int split, long r, long value) {
+        if (tag == TaggedKey.Tag.TOTAL || tag == TaggedKey.Tag.R) {
+            N = value;
+            return;
+        }
+        if (index == null) {
+            index = new HashMap<>();
+            for (int i = 0; i < size; i++)
+                index.put(rs[i], i);
+        }
+        Integer i = index.get(r);
+        if (i == null) {
+            i = insert(r);
+            index.put(r, i);
+        }
+        if (tag == TaggedKey.Tag.N) {
+            if (split == 0)
+                N0[i] += value;
+            else
+                N1[i] += value;
+        } else if (tag == TaggedKey.Tag.T) {
+            if (split == 0)
+                T0[i] += value;
+            else
+                T1[i] += value;
+        }
+    }
+
+    /**
+     * Parses one line of the Step2 output, returns false if it is not a statistics line.
+     */
+    public boolean addLine(Text line) {
+        String[] keyValue = line.toString().split("\t");
+        if (keyValue.length != 2)
+            return false;
+        String[] words = keyValue[0].split(" ");
+        if (words.length != 2 && words.length != 3)
+            return false;
+        long value = Long.parseLong(keyValue[1]);
+        if (words.length == 2 && words[0].equals("**"))
+            add(TaggedKey.Tag.R, 0, 0, value);
+        else if (words.length == 3 && (words[0].equals("N") || words[0].equals("T")) && isNumber(words[1]) && isNumber(words[2]))
+            add(TaggedKey.Tag.valueOf(words[0]), Integer.parseInt(words[1]), Long.parseLong(words[2]), value);
+        else
+            return false;
+        return true;
+    }
+
+    /**
+     * Reads all the lines of a file, or of all the part files of a directory.
+     */
+    public void load(Configuration conf, Path path) throws IOException {
+        FileSystem fs = path.getFileSystem(conf);
+        for (FileStatus status : fs.listStatus(path)) {
+            String name = status.getPath().getName();
+            if (status.isDirectory() || name.startsWith("_") || name.startsWith("."))
+                continue;
+            if (isSequenceFile(fs, status.getPath())) {
+                try (SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(status.getPath()))) {
+                    TaggedKey key = new TaggedKey();
+                    LongWritable value = new LongWritable();
+                    while (reader.next(key, value))
+                        if (key.getTag() != TaggedKey.Tag.TRIGRAM)
+                            add(key.getTag(), key.getSplit(), key.getR(), value.get());
+                }
+                continue;
+            }
+            try (InputStream in = fs.open(status.getPath())) {
+                LineReader reader = new LineReader(in, conf);
+                Text line = new Text();
+                while (reader.readLine(line) > 0)
+                    addLine(line);
+            }
+        }
+    }
+
+    /**
+     * The probability of a 3-gram that appears r times in the corpus:
+     * (T_r_01 + T_r_10) / (N * (N_r_0 + N_r_1)), or 0 if it is undefined.
+     */
+    public double probability(long r) {
+        int i = indexOf(r);
+        if (i < 0 || N == 0 || N0[i] + N1[i] == 0)
+            return 0;
+        return ((double) T0[i] + (double) T1[i]) / ((double) N * ((double) N0[i] + (double) N1[i]));
+    }
+
+    /**
+     * The probability as Step3 writes it.
+     */
+    public String probabilityText(long r) {
+        int i = indexOf(r);
+        if (i < 0 || N == 0 || N0[i] + N1[i] == 0)
+            return String.valueOf(0);
+        return String.valueOf(probability(r));
+    }
+
+    public long getR(int i) {
+        sort();
+        return rs[i];
+    }
+
+    public long getN0(int i) {
+        sort();
+        return N0[i];
+    }
+
+    public long getN1(int i) {
+        sort();
+        return N1[i];
+    }
+
+    public long getT0(int i) {
+        sort();
+        return T0[i];
+    }
+
+    public long getT1(int i) {
+        sort();
+        return T1[i];
+    }
+
+    private int indexOf(long r) {
+        sort();
+        int i = Arrays.binarySearch(rs, 0, size, r);
+        return i >= 0 ? i : -1;
+    }
+
+    private int insert(long r) {
+        if (size == rs.length) {
+            int capacity = size * 2;
+            rs = Arrays.copyOf(rs, capacity);
+            N0 = Arrays.copyOf(N0, capacity);
+            N1 = Arrays.copyOf(N1, capacity);
+            T0 = Arrays.copyOf(T0, capacity);
+            T1 = Arrays.copyOf(T1, capacity);
+        }
+        if (size > 0 && rs[size - 1] > r)
+            sorted = false;
+        rs[size] = r;
+        N0[size] = N1[size] = T0[size] = T1[size] = 0;
+        return size++;
+    }
+
+    /**
+     * The lines usually come sorted by r, otherwise sort the arrays once before the first lookup.
+     */
+    private void sort() {
+        index = null;
+        if (sorted)
+            return;
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(rs[a], rs[b]));
+        long[][] columns = {rs, N0, N1, T0, T1};
+        for (long[] column : columns) {
+            long[] copy = Arrays.copyOf(column, size);
+            for (int i = 0; i < size; i++)
+                column[i] = copy[order[i]];
+        }
+        sorted = true;
+    }
+
+    private static boolean isSequenceFile(FileSystem fs, Path path) throws IOException {
+        byte[] magic = new byte[3];
+        try (FSDataInputStream in = fs.open(path)) {
+            return in.read(magic) == 3 && magic[0] == 'S' && magic[1] == 'E' && magic[2] == 'Q';
+        }
+    }
+
+    private static boolean isNumber(String s) {
+        if (s.isEmpty())
+            return false;
+        for (int i = 0; i < s.length(); i++)
+            if (!Character.isDigit(s.charAt(i)))
+                return false;
+        return true;
+    }
+}
@@ -0,0 +1,110 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Writes a synthetic corpus in the format of the Google Books n-gram data sets - LongWritable / Text
+ * lines "w1 .. wn \t year \t occurrences \t pages \t books", to a SequenceFile or to a RecordWriter
+ * (the in-memory input of the benchmarks).
+ * <p>
+ * The words are drawn from a Zipf distribution over a random vocabulary, with some stop words,
+ * and every n-gram appears on consecutive lines for a run of years.
+ */
+public class SampleCorpus {
+    private static final String[] STOP_WORDS = {"the", "of", "and", "to", "in", "a", "is", "that"};
+
+    private final Random random;
+    private final String[] vocabulary;
+    private final double[] cumulative;
+    private final double stopWordRate;
+
+    /**
+     * @param words        vocabulary size
+     * @param exponent     Zipf exponent (about 1 for natural language)
+     * @param stopWordRate probability of every word to be a stop word
+     */
+    public SampleCorpus(int words, double exponent, double stopWordRate, long seed) {
+        random = new Random(seed);
+        this.stopWordRate = stopWordRate;
+        HashSet<String> unique = new HashSet<>(Arrays.asList(STOP_WORDS));
+        vocabulary = new String[words];
+        for (int i = 0; i < words; ) {
+            char[] word = new char[2 + random.nextInt(9)];
+            for (int c = 0; c < word.length; c++)
+                word[c] = (char) ('a' + random.nextInt(26));
+            String w = new String(word);
+            if (unique.add(w))
+                vocabulary[i++] = w;
+        }
+        cumulative = new double[words];
+        double sum = 0;
+        for (int i = 0; i < words; i++)
+            cumulative[i] = sum += 1 / Math.pow(i + 1, exponent);
+        for (int i = 0; i < words; i++)
+            cumulative[i] /= sum;
+    }
+
+    private String word() {
+        if (random.nextDouble() < stopWordRate)
+            return STOP_WORDS[random.nextInt(STOP_WORDS.length)];
+        int i = Arrays.binarySearch(cumulative, random.nextDouble());
+        return vocabulary[Math.min(i < 0 ? -i - 1 : i, vocabulary.length - 1)];
+    }
+
+    /**
+     * Writes the given number of lines of n-grams of the given order to file.
+     */
+    public void write(Configuration conf, Path file, long lines, int order) throws IOException {
+        try (SequenceFile.Writer writer = SequenceFile.createWriter(conf,
+                SequenceFile.Writer.file(file),
+                SequenceFile.Writer.keyClass(LongWritable.class),
+                SequenceFile.Writer.valueClass(Text.class))) {
+            write(lines, order, new RecordWriter<LongWritable, Text>() {
+                @Override
+                public void write(LongWritable offset, Text line) throws IOException {
+                    writer.append(offset, line);
+                }
+
+                @Override
+                public void close(TaskAttemptContext context) {
+                }
+            });
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Writes the given number of lines of n-grams of the given order (Key = byte offset, Value = line) to out.
+     */
+    public void write(long lines, int order, RecordWriter<? super LongWritable, ? super Text> out) throws IOException, InterruptedException {
+        LongWritable offset = new LongWritable();
+        Text line = new Text();
+        long position = 0, written = 0;
+        while (written < lines) {
+            StringBuilder ngram = new StringBuilder(word());
+            for (int i = 1; i < order; i++)
+                ngram.append(' ').append(word());
+            int year = 1800 + random.nextInt(200);
+            int years = 1 + random.nextInt(10);
+            for (int y = 0; y < years && written < lines; y++, written++) {
+                long occurrences = 1 + (long) Math.min(1e6, Math.pow(random.nextDouble(), -1.5));
+                long pages = 1 + (long) (occurrences * random.nextDouble());
+                long books = 1 + (long) (pages * random.nextDouble());
+                line.set(ngram + "\t" + (year + y) + "\t" + occurrences + "\t" + pages + "\t" + books);
+                offset.set(position);
+                out.write(offset, line);
+                position += line.getLength() + 1;
+            }
+        }
+    }
+}
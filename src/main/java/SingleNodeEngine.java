@@ -0,0 +1,716 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Computes the knowledge base on one machine with all its cores, without a cluster or the
+ * MapReduce shuffle - for corpora of a few tens of GB.
+ * <p>
+ * Usage: SingleNodeEngine [-D key=value ...] corpus output
+ * <p>
+ * Reads the same input as Step1 and writes the Step4 output format - "w1 w2 w3 \t probability" lines
+ * in output/part-r-00000, sorted like Step4 with the total order partitioner (by w1 w2 in byte order,
+ * then by probability descending and w3). Step4.TOP_K and Step4.MIN_PROBABILITY apply as well.
+ * <p>
+ * 1) Count - the threads read the input splits and aggregate R0 / R1 per 3-gram in a TrigramCounts,
+ * a full map is sorted and spilled to a run file.
+ * 2) Merge - the runs are merged per shard (a range of w1 w2, from a sample of the input) in parallel,
+ * which gives every 3-gram with its r and the N_r / T_r statistics of the shard.
+ * 3) Sort - the 3-grams of every shard are grouped by w1 w2 and sorted by probability.
+ */
+public class SingleNodeEngine {
+    // Number of threads (default - the number of cores)
+    public static final String THREADS = "engine.threads";
+    // Memory budget of the 3-gram counts of all the threads together, beyond it they are spilled to disk
+    public static final String MEMORY_BYTES = "engine.memory.bytes";
+    // Number of w1 w2 ranges merged and sorted in parallel (default - 4 per thread)
+    public static final String SHARDS = "engine.shards";
+    // Number of input lines sampled for the shard boundaries
+    public static final String SAMPLES = "engine.samples";
+    // Directory of the run files (default - java.io.tmpdir)
+    public static final String SPILL_DIR = "engine.spill.dir";
+    // InputFormat of the corpus (default - SequenceFileInputFormat, like Step1)
+    public static final String INPUT_FORMAT = "engine.input-format.class";
+
+    private final Configuration conf;
+    private final int threads;
+    private final long memoryBytes;
+    private File directory;
+    // Sorted w1 w2 contexts, shard i holds the contexts in [boundaries[i - 1], boundaries[i])
+    private byte[][] boundaries;
+    private final List<Run> runs = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicLong lines = new AtomicLong();
+    private final AtomicLong N = new AtomicLong();
+    private final AtomicLong malformedLines = new AtomicLong();
+    private final AtomicLong spills = new AtomicLong();
+    private long trigrams;
+
+    public SingleNodeEngine(Configuration conf) {
+        this.conf = conf;
+        this.threads = conf.getInt(THREADS, Runtime.getRuntime().availableProcessors());
+        this.memoryBytes = conf.getLong(MEMORY_BYTES, Runtime.getRuntime().maxMemory() / 2);
+    }
+
+    public void run(Path input, Path output) throws IOException, InterruptedException {
+        FileSystem fs = output.getFileSystem(conf);
+        if (fs.exists(output))
+            throw new IOException("Output directory " + output + " already exists");
+        Job job = Job.getInstance(conf);
+        FileInputFormat.addInputPath(job, input);
+        @SuppressWarnings("unchecked")
+        InputFormat<LongWritable, Text> inputFormat = ReflectionUtils.newInstance(
+                conf.getClass(INPUT_FORMAT, SequenceFileInputFormat.class, InputFormat.class), conf);
+        List<InputSplit> splits = new ArrayList<>(inputFormat.getSplits(job));
+        // The biggest splits first, so that the threads finish together
+        splits.sort((a, b) -> Long.compare(length(b), length(a)));
+
+        directory = Files.createTempDirectory(new File(conf.get(SPILL_DIR, System.getProperty("java.io.tmpdir"))).toPath(), "engine").toFile();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            long start = System.nanoTime();
+            boundaries = sample(inputFormat, splits, conf.getInt(SHARDS, 4 * threads));
+            AtomicInteger next = new AtomicInteger();
+            List<Callable<Void>> counters = new ArrayList<>();
+            for (int i = 0; i < threads; i++)
+                counters.add(() -> count(inputFormat, splits, next));
+            invokeAll(executor, counters);
+            long counted = System.nanoTime();
+
+            List<Callable<RStatistics>> merges = new ArrayList<>();
+            for (int shard = 0; shard <= boundaries.length; shard++) {
+                int s = shard;
+                merges.add(() -> merge(s));
+            }
+            RStatistics statistics = new RStatistics();
+            for (RStatistics shard : invokeAll(executor, merges))
+                for (int i = 0; i < shard.size(); i++) {
+                    long r = shard.getR(i);
+                    statistics.add(TaggedKey.Tag.N, 0, r, shard.getN0(i));
+                    statistics.add(TaggedKey.Tag.N, 1, r, shard.getN1(i));
+                    statistics.add(TaggedKey.Tag.T, 0, r, shard.getT0(i));
+                    statistics.add(TaggedKey.Tag.T, 1, r, shard.getT1(i));
+                }
+            statistics.setN(N.get());
+            ProbabilityTable probabilities = new ProbabilityTable(statistics);
+            runs.clear();
+            long merged = System.nanoTime();
+
+            List<Callable<Void>> sorts = new ArrayList<>();
+            for (int shard = 0; shard <= boundaries.length; shard++) {
+                int s = shard;
+                sorts.add(() -> sort(s, probabilities));
+            }
+            invokeAll(executor, sorts);
+            fs.mkdirs(output);
+            try (OutputStream out = fs.create(new Path(output, "part-r-00000"))) {
+                byte[] buffer = new byte[64 * 1024];
+                for (int shard = 0; shard <= boundaries.length; shard++)
+                    try (InputStream in = new FileInputStream(new File(directory, "output-" + shard))) {
+                        for (int read; (read = in.read(buffer)) > 0; )
+                            out.write(buffer, 0, read);
+                    }
+            }
+            fs.create(new Path(output, "_SUCCESS")).close();
+            long end = System.nanoTime();
+
+            System.out.println(String.format("Counted %d lines in %.2f s (%.0f lines/sec, %d malformed, %d spills, %d threads)",
+                    lines.get(), (counted - start) / 1e9, lines.get() / ((counted - start) / 1e9), malformedLines.get(), spills.get(), threads));
+            System.out.println(String.format("Merged %d 3-grams in %d shards in %.2f s", trigrams, boundaries.length + 1, (merged - counted) / 1e9));
+            System.out.println(String.format("Sorted and wrote the output in %.2f s, total %.2f s", (end - merged) / 1e9, (end - start) / 1e9));
+        } finally {
+            executor.shutdownNow();
+            FileUtil.fullyDelete(directory);
+        }
+    }
+
+    private static long length(InputSplit split) {
+        try {
+            return split.getLength();
+        } catch (IOException | InterruptedException e) {
+            return 0;
+        }
+    }
+
+    private static <T> List<T> invokeAll(ExecutorService executor, List<Callable<T>> tasks) throws IOException, InterruptedException {
+        List<T> results = new ArrayList<>();
+        for (Future<T> future : executor.invokeAll(tasks)) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                throw new IOException(e.getCause());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * The shard boundaries - evenly spaced w1 w2 contexts of lines sampled from evenly chosen splits, like Step4.
+     */
+    private byte[][] sample(InputFormat<LongWritable, Text> inputFormat, List<InputSplit> splits, int shards) throws IOException, InterruptedException {
+        int splitsToSample = Math.min(splits.size(), 10 * shards);
+        int samplesPerSplit = Math.max(1, conf.getInt(SAMPLES, 100000) / Math.max(1, splitsToSample));
+        List<byte[]> contexts = new ArrayList<>();
+        CorpusLine line = new CorpusLine(NGram.order(conf));
+        for (int i = 0; i < splitsToSample; i++) {
+            InputSplit split = splits.get(i * splits.size() / splitsToSample);
+            TaskAttemptContext context = new TaskAttemptContextImpl(conf, new TaskAttemptID());
+            try (RecordReader<LongWritable, Text> reader = inputFormat.createRecordReader(split, context)) {
+                reader.initialize(split, context);
+                for (int taken = 0; taken < samplesPerSplit && reader.nextKeyValue(); taken++)
+                    if (line.parse(reader.getCurrentValue()))
+                        contexts.add(Arrays.copyOf(line.getBytes(), NGram.contextLength(line.getBytes(), 0, line.ngramLength())));
+            }
+        }
+        contexts.sort((a, b) -> WritableComparator.compareBytes(a, 0, a.length, b, 0, b.length));
+        List<byte[]> boundaries = new ArrayList<>();
+        for (int i = 1; i < shards && !contexts.isEmpty(); i++) {
+            byte[] candidate = contexts.get((int) ((long) i * contexts.size() / shards));
+            if (candidate.length > 0 && (boundaries.isEmpty() || compare(boundaries.get(boundaries.size() - 1), candidate) < 0))
+                boundaries.add(candidate);
+        }
+        return boundaries.toArray(new byte[0][]);
+    }
+
+    private static int compare(byte[] a, byte[] b) {
+        return WritableComparator.compareBytes(a, 0, a.length, b, 0, b.length);
+    }
+
+    /**
+     * Orders the 3-grams by w1 w2, then by w3 - the order of the shards and of the output.
+     */
+    private static int compareTrigrams(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+        int c1 = NGram.contextLength(b1, s1, l1);
+        int c2 = NGram.contextLength(b2, s2, l2);
+        int compare = WritableComparator.compareBytes(b1, s1, c1, b2, s2, c2);
+        if (compare != 0)
+            return compare;
+        return WritableComparator.compareBytes(b1, s1 + c1, l1 - c1, b2, s2 + c2, l2 - c2);
+    }
+
+    /**
+     * The shard of a w1 w2 context - the number of boundaries that are not greater than it.
+     */
+    private int shard(byte[] bytes, int start, int length) {
+        int low = 0, high = boundaries.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            byte[] boundary = boundaries[middle];
+            if (WritableComparator.compareBytes(boundary, 0, boundary.length, bytes, start, length) <= 0)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    /**
+     * Phase 1 of one thread - counts the lines of the splits it takes, like Step1.Map with in-mapper combining.
+     */
+    private Void count(InputFormat<LongWritable, Text> inputFormat, List<InputSplit> splits, AtomicInteger next) throws IOException, InterruptedException {
+        CorpusSplitter splitter = ReflectionUtils.newInstance(conf.getClass(Step1.SPLITTER_CLASS, HashCorpusSplitter.class, CorpusSplitter.class), conf);
+        long budget = memoryBytes / threads;
+        TrigramCounts counts = new TrigramCounts();
+        CorpusLine line = CorpusLine.create(conf);
+        long read = 0, n = 0, malformed = 0;
+        for (int i; (i = next.getAndIncrement()) < splits.size(); ) {
+            InputSplit split = splits.get(i);
+            TaskAttemptContext context = new TaskAttemptContextImpl(conf, new TaskAttemptID());
+            try (RecordReader<LongWritable, Text> reader = inputFormat.createRecordReader(split, context)) {
+                reader.initialize(split, context);
+                while (reader.nextKeyValue()) {
+                    read++;
+                    Text value = reader.getCurrentValue();
+                    if (!line.parse(value)) {
+                        malformed++;
+                        continue;
+                    }
+                    if (line.hasStopWord())
+                        continue;
+                    long occurrences;
+                    try {
+                        if (!line.inYears())
+                            continue;
+                        occurrences = line.occurrences();
+                    } catch (NumberFormatException e) { // dropped like Step1 does
+                        malformed++;
+                        continue;
+                    }
+                    n += occurrences;
+                    counts.add(line.getBytes(), 0, line.ngramLength(), CorpusSplitter.part(splitter, Step1.CORPUS_PARTS, reader.getCurrentKey().get(), value), occurrences);
+                    if (counts.memoryBytes() > budget) {
+                        runs.add(spill(counts));
+                        counts.clear();
+                    }
+                }
+            }
+        }
+        // The last counts of the thread stay in memory
+        if (counts.size() > 0) {
+            int[] order = sort(counts);
+            runs.add(new MemoryRun(counts, order, shardStarts(counts, order)));
+        }
+        lines.addAndGet(read);
+        malformedLines.addAndGet(malformed);
+        N.addAndGet(n);
+        return null;
+    }
+
+    /**
+     * The entries of the counts in the order of compareTrigrams - which is also the order of the shards.
+     */
+    private static int[] sort(TrigramCounts counts) {
+        int[] order = new int[counts.size()];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        byte[] bytes = counts.getBytes();
+        new QuickSort().sort(new IndexedSortable() {
+            @Override
+            public int compare(int a, int b) {
+                int i = order[a], j = order[b];
+                return compareTrigrams(bytes, counts.getStart(i), counts.getLength(i), bytes, counts.getStart(j), counts.getLength(j));
+            }
+
+            @Override
+            public void swap(int a, int b) {
+                int t = order[a];
+                order[a] = order[b];
+                order[b] = t;
+            }
+        }, 0, order.length);
+        return order;
+    }
+
+    /**
+     * The first position of every shard (and the end) in the sorted entries.
+     */
+    private int[] shardStarts(TrigramCounts counts, int[] order) {
+        int[] starts = new int[boundaries.length + 2];
+        int position = 0;
+        for (int shard = 0; shard <= boundaries.length; shard++) {
+            starts[shard] = position;
+            while (position < order.length) {
+                int entry = order[position];
+                int start = counts.getStart(entry);
+                if (shard(counts.getBytes(), start, NGram.contextLength(counts.getBytes(), start, counts.getLength(entry))) != shard)
+                    break;
+                position++;
+            }
+        }
+        starts[boundaries.length + 1] = position;
+        return starts;
+    }
+
+    /**
+     * Writes the sorted counts to a run file.
+     * Record: length (VInt), 3-gram bytes, R0 (VLong), R1 (VLong)
+     */
+    private Run spill(TrigramCounts counts) throws IOException {
+        int[] order = sort(counts);
+        int[] starts = shardStarts(counts, order);
+        long[] offsets = new long[starts.length];
+        File file = new File(directory, "run-" + spills.getAndIncrement());
+        byte[] bytes = counts.getBytes();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024))) {
+            long offset = 0;
+            int shard = 0;
+            for (int position = 0; position < order.length; position++) {
+                while (starts[shard + 1] <= position)
+                    offsets[++shard] = offset;
+                int entry = order[position];
+                int length = counts.getLength(entry);
+                WritableUtils.writeVInt(out, length);
+                out.write(bytes, counts.getStart(entry), length);
+                WritableUtils.writeVLong(out, counts.getR0(entry));
+                WritableUtils.writeVLong(out, counts.getR1(entry));
+                offset += WritableUtils.getVIntSize(length) + length
+                        + WritableUtils.getVIntSize(counts.getR0(entry)) + WritableUtils.getVIntSize(counts.getR1(entry));
+            }
+            while (shard < offsets.length - 1)
+                offsets[++shard] = offset;
+        }
+        return new DiskRun(file, offsets);
+    }
+
+    /**
+     * Phase 2 of one shard - merges its 3-grams from all the runs, writes them with their r and
+     * returns the statistics of the shard, like Step2.
+     * Record: length (VInt), 3-gram bytes, r (VLong)
+     */
+    private RStatistics merge(int shard) throws IOException {
+        PriorityQueue<Cursor> queue = new PriorityQueue<>((a, b) ->
+                compareTrigrams(a.bytes(), a.start(), a.length(), b.bytes(), b.start(), b.length()));
+        List<Run> all;
+        synchronized (runs) {
+            all = new ArrayList<>(runs);
+        }
+        for (Run run : all) {
+            Cursor cursor = run.cursor(shard);
+            if (cursor.next())
+                queue.add(cursor);
+            else
+                cursor.close();
+        }
+        RStatistics statistics = new RStatistics();
+        byte[] current = new byte[256];
+        int length = -1;
+        long R0 = 0, R1 = 0, distinct = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(directory, "merged-" + shard)), 64 * 1024))) {
+            while (!queue.isEmpty()) {
+                Cursor cursor = queue.poll();
+                if (length >= 0 && compareTrigrams(current, 0, length, cursor.bytes(), cursor.start(), cursor.length()) == 0) {
+                    R0 += cursor.r0();
+                    R1 += cursor.r1();
+                } else {
+                    if (length >= 0) {
+                        write(out, statistics, current, length, R0, R1);
+                        distinct++;
+                    }
+                    length = cursor.length();
+                    if (current.length < length)
+                        current = new byte[Math.max(length, current.length * 2)];
+                    System.arraycopy(cursor.bytes(), cursor.start(), current, 0, length);
+                    R0 = cursor.r0();
+                    R1 = cursor.r1();
+                }
+                if (cursor.next())
+                    queue.add(cursor);
+                else
+                    cursor.close();
+            }
+            if (length >= 0) {
+                write(out, statistics, current, length, R0, R1);
+                distinct++;
+            }
+        }
+        synchronized (this) {
+            trigrams += distinct;
+        }
+        return statistics;
+    }
+
+    private static void write(DataOutputStream out, RStatistics statistics, byte[] trigram, int length, long R0, long R1) throws IOException {
+        if (R0 > 0) {
+            statistics.add(TaggedKey.Tag.N, 0, R0, 1);
+            statistics.add(TaggedKey.Tag.T, 1, R0, R1);
+        }
+        if (R1 > 0) {
+            statistics.add(TaggedKey.Tag.N, 1, R1, 1);
+            statistics.add(TaggedKey.Tag.T, 0, R1, R0);
+        }
+        WritableUtils.writeVInt(out, length);
+        out.write(trigram, 0, length);
+        WritableUtils.writeVLong(out, R0 + R1);
+    }
+
+    /**
+     * Phase 3 of one shard - writes its 3-grams with their probabilities, sorted by w1 w2 and then
+     * by probability descending, like Step4.
+     */
+    private Void sort(int shard, ProbabilityTable probabilities) throws IOException {
+        File merged = new File(directory, "merged-" + shard);
+        Group group = new Group(probabilities, conf.getInt(Step4.TOP_K, 0), conf.getDouble(Step4.MIN_PROBABILITY, 0));
+        byte[] trigram = new byte[256];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(merged), 64 * 1024));
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(new File(directory, "output-" + shard)), 64 * 1024)) {
+            while (true) {
+                int length;
+                try {
+                    length = WritableUtils.readVInt(in);
+                } catch (EOFException e) {
+                    break;
+                }
+                if (trigram.length < length)
+                    trigram = new byte[Math.max(length, trigram.length * 2)];
+                in.readFully(trigram, 0, length);
+                long r = WritableUtils.readVLong(in);
+                if (!group.sameContext(trigram, length))
+                    group.write(out);
+                group.add(trigram, length, probabilities.index(r));
+            }
+            group.write(out);
+        }
+        merged.delete();
+        return null;
+    }
+
+    /**
+     * The 3-grams of one w1 w2 context.
+     */
+    private static class Group {
+        private byte[] bytes = new byte[4096];
+        private int bytesLength = 0;
+        private int[] starts = new int[64];
+        private int[] lengths = new int[64];
+        private int[] rIndexes = new int[64];
+        private int size = 0;
+        private final ProbabilityTable probabilities;
+        private final int k;
+        private final double minProbability;
+
+        Group(ProbabilityTable probabilities, int k, double minProbability) {
+            this.probabilities = probabilities;
+            this.k = k;
+            this.minProbability = minProbability;
+        }
+
+        boolean sameContext(byte[] trigram, int length) {
+            if (size == 0)
+                return true;
+            int context = NGram.contextLength(trigram, 0, length);
+            return WritableComparator.compareBytes(bytes, starts[0], NGram.contextLength(bytes, starts[0], lengths[0]), trigram, 0, context) == 0;
+        }
+
+        void add(byte[] trigram, int length, int rIndex) {
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
+                rIndexes = Arrays.copyOf(rIndexes, size * 2);
+            }
+            if (bytesLength + length > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(bytesLength + length, bytes.length * 2));
+            System.arraycopy(trigram, 0, bytes, bytesLength, length);
+            starts[size] = bytesLength;
+            lengths[size] = length;
+            rIndexes[size++] = rIndex;
+            bytesLength += length;
+        }
+
+        /**
+         * Writes the 3-grams by probability descending, then by w3, and empties the group - only the
+         * first k and those of at least minProbability.
+         */
+        void write(OutputStream out) throws IOException {
+            int[] order = new int[size];
+            for (int i = 0; i < size; i++)
+                order[i] = i;
+            new QuickSort().sort(new IndexedSortable() {
+                @Override
+                public int compare(int a, int b) {
+                    int i = order[a], j = order[b];
+                    int compare = Double.compare(probabilities.probability(rIndexes[j]), probabilities.probability(rIndexes[i]));
+                    if (compare != 0)
+                        return compare;
+                    return compareTrigrams(bytes, starts[i], lengths[i], bytes, starts[j], lengths[j]);
+                }
+
+                @Override
+                public void swap(int a, int b) {
+                    int t = order[a];
+                    order[a] = order[b];
+                    order[b] = t;
+                }
+            }, 0, size);
+            for (int n = 0; n < size && (k <= 0 || n < k); n++) {
+                int i = order[n];
+                if (probabilities.probability(rIndexes[i]) < minProbability)
+                    break;
+                out.write(bytes, starts[i], lengths[i]);
+                out.write('\t');
+                Text text = probabilities.text(rIndexes[i]);
+                out.write(text.getBytes(), 0, text.getLength());
+                out.write('\n');
+            }
+            bytesLength = 0;
+            size = 0;
+        }
+    }
+
+    /**
+     * Sorted 3-grams with their R0 / R1, split by shard.
+     */
+    private interface Run {
+        Cursor cursor(int shard) throws IOException;
+    }
+
+    private interface Cursor {
+        boolean next() throws IOException;
+
+        byte[] bytes();
+
+        int start();
+
+        int length();
+
+        long r0();
+
+        long r1();
+
+        void close() throws IOException;
+    }
+
+    private static class MemoryRun implements Run {
+        private final TrigramCounts counts;
+        private final int[] order;
+        private final int[] shardStarts;
+
+        MemoryRun(TrigramCounts counts, int[] order, int[] shardStarts) {
+            this.counts = counts;
+            this.order = order;
+            this.shardStarts = shardStarts;
+        }
+
+        @Override
+        public Cursor cursor(int shard) {
+            return new Cursor() {
+                private int position = shardStarts[shard] - 1;
+
+                @Override
+                public boolean next() {
+                    return ++position < shardStarts[shard + 1];
+                }
+
+                @Override
+                public byte[] bytes() {
+                    return counts.getBytes();
+                }
+
+                @Override
+                public int start() {
+                    return counts.getStart(order[position]);
+                }
+
+                @Override
+                public int length() {
+                    return counts.getLength(order[position]);
+                }
+
+                @Override
+                public long r0() {
+                    return counts.getR0(order[position]);
+                }
+
+                @Override
+                public long r1() {
+                    return counts.getR1(order[position]);
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+    }
+
+    private static class DiskRun implements Run {
+        private final File file;
+        private final long[] offsets;
+
+        DiskRun(File file, long[] offsets) {
+            this.file = file;
+            this.offsets = offsets;
+        }
+
+        @Override
+        public Cursor cursor(int shard) throws IOException {
+            FileInputStream stream = new FileInputStream(file);
+            stream.getChannel().position(offsets[shard]);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 64 * 1024));
+            return new Cursor() {
+                private long remaining = offsets[shard + 1] - offsets[shard];
+                private byte[] bytes = new byte[256];
+                private int length;
+                private long R0, R1;
+
+                @Override
+                public boolean next() throws IOException {
+                    if (remaining <= 0)
+                        return false;
+                    length = WritableUtils.readVInt(in);
+                    if (bytes.length < length)
+                        bytes = new byte[Math.max(length, bytes.length * 2)];
+                    in.readFully(bytes, 0, length);
+                    R0 = WritableUtils.readVLong(in);
+                    R1 = WritableUtils.readVLong(in);
+                    remaining -= WritableUtils.getVIntSize(length) + length + WritableUtils.getVIntSize(R0) + WritableUtils.getVIntSize(R1);
+                    return true;
+                }
+
+                @Override
+                public byte[] bytes() {
+                    return bytes;
+                }
+
+                @Override
+                public int start() {
+                    return 0;
+                }
+
+                @Override
+                public int length() {
+                    return length;
+                }
+
+                @Override
+                public long r0() {
+                    return R0;
+                }
+
+                @Override
+                public long r1() {
+                    return R1;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    in.close();
+                }
+            };
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        String[] remaining = new GenericOptionsParser(conf, args).getRemainingArgs();
+        if (remaining.length != 2) {
+            System.err.println("Usage: SingleNodeEngine [-D key=value ...] <corpus> <output>");
+            System.exit(2);
+        }
+        new SingleNodeEngine(conf).run(new Path(remaining[0]), new Path(remaining[1]));
+    }
+}
@@ -0,0 +1,121 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The r values that hold more 3-grams than an even share of the Step3 reducers, and the number of
+ * reducers (salts) the 3-grams of each of them are spread over. Zipf-distributed counts put most
+ * of the 3-grams in the smallest r values, which would all land on one reducer each.
+ * <p>
+ * Computed by a sampling pre-pass over the Step2 3-grams and kept in the job configuration.
+ */
+public class SkewPlan {
+    // The heavy r values and their salts - r:salts,r:salts (set by sample)
+    public static final String HEAVY_R = "step3.skew-aware.heavy-r";
+    // Number of Step2 3-gram records sampled
+    public static final String SAMPLES = "step3.skew-aware.samples";
+
+    private final HashMap<Long, Integer> salts = new HashMap<>();
+
+    public SkewPlan() {
+    }
+
+    public SkewPlan(Configuration conf) {
+        for (String entry : conf.getTrimmedStrings(HEAVY_R)) {
+            String[] rSalts = entry.split(":");
+            salts.put(Long.parseLong(rSalts[0]), Integer.parseInt(rSalts[1]));
+        }
+    }
+
+    /**
+     * The number of reducers of r, 1 if it is not heavy.
+     */
+    public int salts(long r) {
+        Integer s = salts.get(r);
+        return s == null ? 1 : s;
+    }
+
+    public int size() {
+        return salts.size();
+    }
+
+    /**
+     * Samples the 3-grams of the job input (the Step2 output) and sets HEAVY_R to every r whose share
+     * of the sample is more than one reducer's.
+     * <p>
+     * The Step2 part files are sorted by r, so the first records of a split are its smallest r values -
+     * the sample is a reservoir over all the 3-grams of evenly chosen splits (like InputSampler.RandomSampler),
+     * with a fixed seed so the same input gives the same plan.
+     */
+    public static SkewPlan sample(Job job) throws IOException, InterruptedException {
+        Configuration conf = job.getConfiguration();
+        int numPartitions = job.getNumReduceTasks();
+        InputFormat<?, ?> inputFormat = ReflectionUtils.newInstance(IntermediateFormat.inputFormat(conf), conf);
+        List<InputSplit> splits = inputFormat.getSplits(job);
+        int numSamples = conf.getInt(SAMPLES, 100000);
+        int splitsToSample = Math.min(splits.size(), 10 * Math.max(1, numPartitions));
+        long[] reservoir = new long[Math.max(1, numSamples)];
+        Random random = new Random(0);
+        long seen = 0;
+        for (int i = 0; i < splitsToSample; i++) {
+            InputSplit split = splits.get(i * splits.size() / splitsToSample);
+            TaskAttemptContext samplingContext = new TaskAttemptContextImpl(conf, new TaskAttemptID());
+            RecordReader<?, ?> reader = inputFormat.createRecordReader(split, samplingContext);
+            reader.initialize(split, samplingContext);
+            while (reader.nextKeyValue()) {
+                long r;
+                if (reader.getCurrentKey() instanceof TaggedKey) { // SequenceFile input
+                    TaggedKey key = (TaggedKey) reader.getCurrentKey();
+                    if (key.getTag() != TaggedKey.Tag.TRIGRAM)
+                        continue;
+                    r = key.getR();
+                } else { // <w1 w2 w3 \t r> - the statistics lines are skipped like in Step3.Map
+                    String[] keyValue = ((Text) reader.getCurrentValue()).toString().split("\t");
+                    String first = keyValue[0].split(" ")[0];
+                    if (first.equals("N") || first.equals("T") || first.equals("**"))
+                        continue;
+                    r = Long.parseLong(keyValue[1]);
+                }
+                if (seen < reservoir.length) {
+                    reservoir[(int) seen] = r;
+                } else {
+                    long replaced = (long) (random.nextDouble() * (seen + 1));
+                    if (replaced < reservoir.length)
+                        reservoir[(int) replaced] = r;
+                }
+                seen++;
+            }
+            reader.close();
+        }
+        int sampled = (int) Math.min(seen, reservoir.length);
+        HashMap<Long, Integer> counts = new HashMap<>();
+        for (int i = 0; i < sampled; i++)
+            counts.merge(reservoir[i], 1, Integer::sum);
+
+        SkewPlan plan = new SkewPlan();
+        StringBuilder heavy = new StringBuilder();
+        for (Map.Entry<Long, Integer> entry : counts.entrySet()) {
+            int salts = (int) Math.min(Math.min(numPartitions, TaggedKey.MAX_SALTS),
+                    Math.ceil((double) entry.getValue() * numPartitions / sampled));
+            if (salts > 1) {
+                plan.salts.put(entry.getKey(), salts);
+                heavy.append(heavy.length() == 0 ? "" : ",").append(entry.getKey()).append(':').append(salts);
+            }
+        }
+        conf.set(HEAVY_R, heavy.toString());
+        return plan;
+    }
+}
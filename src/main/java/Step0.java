@@ -0,0 +1,128 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+import java.io.IOException;
+
+/**
+ * Optional vocabulary pass - counts the words of the 3-grams that Step1 keeps and writes the
+ * vocabulary file (see Vocabulary) that Step1 - Step4 use when pipeline.vocabulary is set.
+ */
+public class Step0 {
+    public enum Counter {
+        MALFORMED_LINES // lines that are not n-gram lines or have a bad year or occurrences field - dropped
+    }
+
+    /**
+     * Input:
+     * Key = lineId (LongWritable)
+     * Value = n-gram \t year \t occurrences \t pages \t books (Text)
+     * Output:
+     * Key = word Value = occurrences (once for each of w1 .. wn)
+     * With AdaptiveCombiner.ENABLED (default) they are summed by the AdaptiveCombiner of the task, and
+     * the job runs no combiner.
+     */
+    public static class Map extends Mapper<LongWritable, Text, Text, LongWritable> {
+        private CorpusLine line;
+        private final Text word = new Text();
+        private final LongWritable occurrences = new LongWritable();
+        // Sums the occurrences of the words - null when disabled
+        private AdaptiveCombiner<Text> combiner;
+        private long malformedLines = 0;
+
+        @Override
+        protected void setup(Context context) {
+            line = CorpusLine.create(context.getConfiguration());
+            if (AdaptiveCombiner.isEnabled(context.getConfiguration()))
+                combiner = new AdaptiveCombiner<>(context);
+        }
+
+        @Override
+        public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+            if (line.parse(value)) {
+                if (line.hasStopWord())
+                    return;
+                try {
+                    if (!line.inYears())
+                        return;
+                    occurrences.set(line.occurrences());
+                } catch (NumberFormatException e) {
+                    malformedLines++;
+                    return;
+                }
+                for (int i = 0; i < line.words(); i++) {
+                    word.set(line.getBytes(), line.wordStart(i), line.wordLength(i));
+                    if (combiner != null)
+                        combiner.add(word, occurrences.get());
+                    else
+                        context.write(word, occurrences);
+                }
+            } else
+                malformedLines++;
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            if (combiner != null)
+                combiner.close();
+            context.getCounter(Counter.MALFORMED_LINES).increment(malformedLines);
+        }
+    }
+
+    /**
+     * Input:
+     * Key = word Value = occurrences
+     * Output:
+     * Key = word Value = occurrences in all the corpus
+     * (also used as the combiner when AdaptiveCombiner is disabled)
+     */
+    public static class Reduce extends Reducer<Text, LongWritable, Text, LongWritable> {
+        private final LongWritable sum = new LongWritable();
+
+        @Override
+        protected void reduce(Text key, Iterable<LongWritable> values, Context context) throws IOException, InterruptedException {
+            long occurrences = 0;
+            for (LongWritable value : values)
+                occurrences += value.get();
+            sum.set(occurrences);
+            context.write(key, sum);
+        }
+    }
+
+    public static Job createJob(Configuration conf, Path corpus, Path counts) throws IOException {
+        Job job = Job.getInstance(conf, "Step0");
+        job.setJarByClass(Step0.class);
+        job.setMapperClass(Map.class);
+        if (!AdaptiveCombiner.isEnabled(conf))
+            job.setCombinerClass(Reduce.class);
+        job.setReducerClass(Reduce.class);
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(LongWritable.class);
+        job.setInputFormatClass(SequenceFileInputFormat.class);
+        job.setOutputFormatClass(IntermediateFormat.textOutputFormat(conf));
+        FileInputFormat.addInputPath(job, corpus);
+        FileOutputFormat.setOutputPath(job, counts);
+        return job;
+    }
+
+    /**
+     * Counts the words of the corpus into counts and writes the vocabulary file sorted by frequency.
+     */
+    public static boolean run(Configuration conf, Path corpus, Path counts, Path vocabulary) throws Exception {
+        if (!Metrics.waitForCompletion(createJob(conf, corpus, counts), true))
+            return false;
+        Vocabulary.write(conf, counts, vocabulary);
+        return true;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Pipeline.main("step0", args);
+    }
+}
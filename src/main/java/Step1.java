@@ -7,79 +7,220 @@ import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Partitioner;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
-import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.ReflectionUtils;
 
 import java.io.IOException;
-import java.util.HashMap;
 
 public class Step1 {
+    // Aggregate R0/R1 and N inside the mapper and write them on cleanup instead of two records per line
+    public static final String IN_MAPPER_COMBINING = "step1.in-mapper-combining";
+    // Memory budget of the in-mapper map, it is flushed when it grows beyond it
+    public static final String IN_MAPPER_MAX_BYTES = "step1.in-mapper-combining.max-bytes";
+    // CorpusSplitter implementation that assigns the lines to the two parts of the corpus
+    public static final String SPLITTER_CLASS = "step1.splitter.class";
+    // Deleted estimation counts two parts of the corpus (R0 and R1)
+    public static final int CORPUS_PARTS = 2;
+    // Sum the consecutive lines of the same n-gram (its years) in the mapper and write one record per part (default true)
+    public static final String AGGREGATE_RUNS = "step1.aggregate-runs";
+
+    public enum Counter {
+        LINES_READ,
+        STOP_WORD_LINES,       // lines dropped for a stop word in the 3-gram
+        MALFORMED_LINES,       // lines that are not "w1 w2 w3 \t year \t occurrences ..." - dropped
+        OUT_OF_VOCABULARY_LINES, // lines dropped because a word is not in the vocabulary
+        OUT_OF_RANGE_LINES     // lines dropped because their year is not in CorpusLine.MIN_YEAR .. MAX_YEAR
+    }
+
     /**
      * Input:
      * Key = lineId (LongWritable)
      * Value = n-gram \t year \t occurrences \t pages \t books (Text)
      * Output:
      * 1) Number of occurrences in each part of the corpus - Key = <w1, w2, w3> Value = occurrences \t corpusPart(0/1)
-     * 2) All three grams occurrences in the corpus (N) - Key = ** Value = occurrences
+     * 2) All three grams occurrences in the corpus (N) - Key = ** Value = occurrences, once per task on cleanup
+     * The corpus holds one line per (n-gram, year) and the lines of an n-gram are consecutive - with
+     * AGGREGATE_RUNS a run of lines of the same n-gram is written once per corpus part, with the sum
+     * of its occurrences.
      */
     private static class Map extends Mapper<LongWritable, Text, Text, Text> {
-        HashMap<String, Integer> stopWords = new HashMap<>();
+        private static final Text STARS = new Text("**");
+        // " 0", " 1" - the corpus part appended to the occurrences
+        private static final byte[][] PARTS = {{' ', '0'}, {' ', '1'}};
+
+        private CorpusSplitter splitter;
+        // In-mapper combining - null when disabled
+        private TrigramCounts counts;
+        private long maxBytes;
+        private long N = 0;
+        // Dictionary encoding of the 3-grams - null when disabled
+        private Vocabulary vocabulary;
+        private final Text trigramText = new Text();
+        private CorpusLine line;
+        private final Text outKey = new Text();
+        private final Text outValue = new Text();
+        private final byte[] digits = new byte[20];
+        // The current run of lines of the same n-gram and its occurrences per corpus part - null when disabled
+        private final Text runKey = new Text();
+        private long[] runOccurrences;
+        private boolean[] runParts;
+        private boolean inRun = false;
+        // Added to the Counter group on cleanup instead of once per line
+        private long linesRead = 0, stopWordLines = 0, malformedLines = 0, outOfVocabularyLines = 0, outOfRangeLines = 0;
 
         @Override
         protected void setup(Mapper<LongWritable, Text, Text, Text>.Context context) throws IOException, InterruptedException {
             super.setup(context);
-            String[] stopWordsArr = {"a", "about", "above", "across", "after", "afterwards", "again", "against", "all", "almost",
-                    "alone", "along", "already", "also", "although", "always", "am", "among", "amongst", "amoungst",
-                    "amount", "an", "and", "another", "any", "anyhow", "anyone", "anything", "anyway", "anywhere", "are",
-                    "around", "as", "at", "back", "be", "became", "because", "become", "becomes", "becoming", "been", "before",
-                    "beforehand", "behind", "being", "below", "beside", "besides", "between", "beyond", "bill", "both",
-                    "bottom", "but", "by", "call", "can", "cannot", "cant", "co", "computer", "con", "could", "couldnt", "cry",
-                    "de", "describe", "detail", "do", "done", "down", "due", "during", "each", "eg", "eight", "either", "eleven",
-                    "else", "elsewhere", "empty", "enough", "etc", "even", "ever", "every", "everyone", "everything", "everywhere",
-                    "except", "few", "fifteen", "fify", "fill", "find", "fire", "first", "five", "for", "former", "formerly",
-                    "forty", "found", "four", "from", "front", "full", "further", "get", "give", "go", "had", "has", "hasnt",
-                    "have", "he", "hence", "her", "here", "hereafter", "hereby", "herein", "hereupon", "hers", "herself", "him",
-                    "himself", "his", "how", "however", "hundred", "i", "ie", "if", "in", "inc", "indeed", "interest", "into", "is",
-                    "it", "its", "itself", "keep", "last", "latter", "latterly", "least", "less", "ltd", "made", "many", "may", "me",
-                    "meanwhile", "might", "mill", "mine", "more", "moreover", "most", "mostly", "move", "much", "must", "my", "myself",
-                    "name", "namely", "neither", "never", "nevertheless", "next", "nine", "no", "nobody", "none", "noone", "nor",
-                    "not", "nothing", "now", "nowhere", "of", "off", "often", "on", "once", "one", "only", "onto", "or", "other",
-                    "others", "otherwise", "our", "ours", "ourselves", "out", "over", "own", "part", "per", "perhaps", "please",
-                    "put", "rather", "re", "same", "see", "seem", "seemed", "seeming", "seems", "serious", "several",
-                    "she", "should", "show", "side", "since", "sincere", "six", "sixty", "so", "some", "somehow",
-                    "someone", "something", "sometime", "sometimes", "somewhere", "still", "such", "system",
-                    "take", "ten", "than", "that", "the", "their", "them", "themselves", "then", "thence", "there",
-                    "thereafter", "thereby", "therefore", "therein", "thereupon", "these", "they", "thick", "thin",
-                    "third", "this", "those", "though", "three", "through", "throughout", "thru", "thus", "to",
-                    "together", "too", "top", "toward", "towards", "twelve", "twenty", "two", "un", "under",
-                    "until", "up", "upon", "us", "very", "via", "was", "we", "well", "were", "what", "whatever",
-                    "when", "whence", "whenever", "where", "whereafter", "whereas", "whereby", "wherein",
-                    "whereupon", "wherever", "whether", "which", "while", "whither", "who", "whoever", "whole",
-                    "whom", "whose", "why", "will", "with", "within", "without", "would", "yet", "you", "your",
-                    "yours", "yourself", "yourselves"};
-            for (String word : stopWordsArr)
-                stopWords.put(word, 0);
+            Configuration conf = context.getConfiguration();
+            line = CorpusLine.create(conf);
+            splitter = ReflectionUtils.newInstance(conf.getClass(SPLITTER_CLASS, HashCorpusSplitter.class, CorpusSplitter.class), conf);
+            if (conf.getBoolean(IN_MAPPER_COMBINING, false)) {
+                counts = new TrigramCounts();
+                maxBytes = conf.getLong(IN_MAPPER_MAX_BYTES, 64L * 1024 * 1024);
+            } else if (conf.getBoolean(AGGREGATE_RUNS, true)) { // the in-mapper map aggregates the runs already
+                runOccurrences = new long[CORPUS_PARTS];
+                runParts = new boolean[CORPUS_PARTS];
+            }
+            if (Vocabulary.isEnabled(conf))
+                vocabulary = Vocabulary.fromCache(context);
         }
 
 
         @Override
-        public void map(LongWritable key, Text value, Mapper.Context context) throws IOException, InterruptedException {
-            String[] fields = value.toString().split("\t");
-            String[] trigram = fields[0].split(" ");
-            if (trigram.length > 2 && fields.length > 2) {
-                String w1 = trigram[0];
-                String w2 = trigram[1];
-                String w3 = trigram[2];
-                if (stopWords.containsKey(w1) || stopWords.containsKey(w2) || stopWords.containsKey(w3))
+        public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+            linesRead++;
+            // Parsed in place over the bytes of the line, w1 .. wn are its first bytes
+            if (line.parse(value)) {
+                if (line.hasStopWord()) {
+                    stopWordLines++;
+                    return;
+                }
+                long occurrences;
+                try {
+                    if (!line.inYears()) {
+                        outOfRangeLines++;
+                        return;
+                    }
+                    occurrences = line.occurrences();
+                } catch (NumberFormatException e) {
+                    malformedLines++;
+                    return;
+                }
+                outKey.set(line.getBytes(), 0, line.ngramLength());
+                if (vocabulary != null) { // Key = <id1 id2 id3> as varints
+                    trigramText.set(outKey);
+                    if (!vocabulary.encode(trigramText, outKey)) {
+                        outOfVocabularyLines++;
+                        return;
+                    }
+                }
+                int corpus_half = CorpusSplitter.part(splitter, CORPUS_PARTS, key.get(), value); // 0 OR 1
+                N += occurrences; // one ** record per task instead of one per line - all of them go to one reducer
+                if (counts != null) {
+                    counts.add(outKey.getBytes(), 0, outKey.getLength(), corpus_half, occurrences);
+                    if (counts.memoryBytes() > maxBytes)
+                        flush(context);
                     return;
-                Text occurrences = new Text(fields[2]);
-                int corpus_half = (int) Math.round(Math.random()); // 0 OR 1
-                context.write(new Text("**"), occurrences);
-                context.write(new Text(String.format("%s %s %s", w1, w2, w3)), new Text(String.format("%s %s", occurrences, corpus_half)));
+                }
+                if (runOccurrences != null) {
+                    if (inRun && !runKey.equals(outKey))
+                        writeRun(context);
+                    if (!inRun) {
+                        runKey.set(outKey);
+                        inRun = true;
+                    }
+                    runOccurrences[corpus_half] += occurrences;
+                    runParts[corpus_half] = true;
+                    return;
+                }
+                // Value = occurrences corpus_half
+                outValue.set(line.getBytes(), line.occurrencesStart(), line.occurrencesLength());
+                outValue.append(PARTS[corpus_half], 0, PARTS[corpus_half].length);
+                context.write(outKey, outValue);
+            } else
+                malformedLines++;
+        }
+
+        @Override
+        protected void cleanup(Mapper<LongWritable, Text, Text, Text>.Context context) throws IOException, InterruptedException {
+            if (inRun)
+                writeRun(context);
+            if (counts != null)
+                flush(context);
+            else if (N > 0) {
+                setDecimal(outValue, N);
+                context.write(STARS, outValue);
             }
+            context.getCounter(Counter.LINES_READ).increment(linesRead);
+            context.getCounter(Counter.STOP_WORD_LINES).increment(stopWordLines);
+            context.getCounter(Counter.MALFORMED_LINES).increment(malformedLines);
+            context.getCounter(Counter.OUT_OF_VOCABULARY_LINES).increment(outOfVocabularyLines);
+            context.getCounter(Counter.OUT_OF_RANGE_LINES).increment(outOfRangeLines);
+            super.cleanup(context);
         }
 
+        /**
+         * Writes the locally aggregated counts in the Combiner output format and empties the map.
+         * Output:
+         * 1) Key = <w1, w2, w3> Value = R0 \t 0 (only if R0 > 0)
+         * 2) Key = <w1, w2, w3> Value = R1 \t 1 (only if R1 > 0)
+         * 3) Key = ** Value = occurrences of all the 3-grams seen since the last flush
+         */
+        private void flush(Context context) throws IOException, InterruptedException {
+            for (int entry = 0; entry < counts.size(); entry++) {
+                counts.getTrigram(entry, outKey);
+                if (counts.getR0(entry) > 0) {
+                    setDecimal(outValue, counts.getR0(entry));
+                    outValue.append(PARTS[0], 0, PARTS[0].length);
+                    context.write(outKey, outValue);
+                }
+                if (counts.getR1(entry) > 0) {
+                    setDecimal(outValue, counts.getR1(entry));
+                    outValue.append(PARTS[1], 0, PARTS[1].length);
+                    context.write(outKey, outValue);
+                }
+            }
+            if (N > 0) {
+                setDecimal(outValue, N);
+                context.write(STARS, outValue);
+            }
+            counts.clear();
+            N = 0;
+        }
+
+        /**
+         * Writes the current run of lines of the same n-gram and ends it.
+         * Output:
+         * Key = <w1, w2, w3> Value = occurrences \t corpusPart - once for every part the lines of the run went to
+         */
+        private void writeRun(Context context) throws IOException, InterruptedException {
+            for (int part = 0; part < runOccurrences.length; part++) {
+                if (!runParts[part])
+                    continue;
+                setDecimal(outValue, runOccurrences[part]);
+                outValue.append(PARTS[part], 0, PARTS[part].length);
+                context.write(runKey, outValue);
+                runOccurrences[part] = 0;
+                runParts[part] = false;
+            }
+            inRun = false;
+        }
+
+        /**
+         * Sets text to the decimal digits of a value.
+         */
+        private void setDecimal(Text text, long value) {
+            int i = digits.length;
+            boolean negative = value < 0;
+            do {
+                digits[--i] = (byte) ('0' + Math.abs(value % 10));
+                value /= 10;
+            } while (value != 0);
+            if (negative)
+                digits[--i] = '-';
+            text.set(digits, i, digits.length - i);
+        }
     }
 
     /**
@@ -93,7 +234,9 @@ public class Step1 {
      * R1 = Number Of occurrences in the second half
      * 2) Number of 3-grams in all the corpus  - Key = **, Value = totalNumberOf3-grams
      */
-    public static class Reduce extends Reducer<Text, Text, Text, Text> {
+    public static class Reduce extends Reducer<Text, Text, Text, CountsWritable> {
+        private final CountsWritable counts = new CountsWritable();
+
         @Override
         protected void reduce(Text key, Iterable<Text> Values, Context context) throws IOException, InterruptedException {
             if (key.toString().equals("**")) {
@@ -102,7 +245,7 @@ public class Step1 {
                     long occurrencesForOne3gram = Long.parseLong(value.toString());
                     totalNumberOf3Grams += occurrencesForOne3gram;
                 }
-                context.write(key, new Text(String.format("%d", totalNumberOf3Grams)));
+                context.write(key, counts.setTotal(totalNumberOf3Grams));
             } else { // Key = <w1,w2,w3>
                 long r = 0, R0 = 0, R1 = 0;
                 for (Text value : Values) {
@@ -113,7 +256,7 @@ public class Step1 {
                         R1 += Long.parseLong(valueSplit[0]);
                     r += Long.parseLong(valueSplit[0]); // In any case we want to count the number of occurrences in all the corpus for the 3-gram
                 }
-                context.write(key, new Text(String.format("%s\t%s\t%s", r, R0, R1)));
+                context.write(key, counts.set(r, R0, R1));
             }
         }
     }
@@ -145,9 +288,9 @@ public class Step1 {
                 for (Text value : Values) {
                     String[] valueSplit = value.toString().split(" "); // [occurrences(number), 0 OR 1]
                     if (valueSplit[1].equals("0")) // First part of the corpus
-                        R0 += Integer.parseInt(valueSplit[0]);
+                        R0 += Long.parseLong(valueSplit[0]);
                     else // // Second part of the corpus
-                        R1 += Integer.parseInt(valueSplit[0]);
+                        R1 += Long.parseLong(valueSplit[0]);
                 }
                 context.write(key, new Text(String.format("%s %s", R0, 0)));
                 context.write(key, new Text(String.format("%s %s", R1, 1)));
@@ -163,27 +306,28 @@ public class Step1 {
         }
     }
 
-    public static void main(String[] args) throws Exception {
-        System.out.println("[DEBUG] STEP 1 started!");
-        System.out.println(args.length > 0 ? args[0] : "no args");
-        Configuration conf = new Configuration();
-        Job job = Job.getInstance(conf);
+    public static Job createJob(Configuration conf, Path input, Path output) throws IOException {
+        Job job = Job.getInstance(conf, "Step1");
         job.setJarByClass(Step1.class);
         job.setMapperClass(Map.class);
         job.setReducerClass(Reduce.class);
+        job.setMapOutputKeyClass(Text.class);
+        job.setMapOutputValueClass(Text.class);
         job.setOutputKeyClass(Text.class);
-        job.setOutputValueClass(Text.class);
+        job.setOutputValueClass(CountsWritable.class);
         job.setPartitionerClass(Step1.Partition.class);
-        job.setOutputFormatClass(TextOutputFormat.class);
+        IntermediateFormat.setOutput(job);
         job.setInputFormatClass(SequenceFileInputFormat.class);
         job.setCombinerClass(Step1.Combiner.class);
-//        job.setInputFormatClass(TextInputFormat.class); // Example File
-//        TextInputFormat.addInputPath(job, new Path("/home/spl211/IdeaProjects/MapReduceProject/3_grams.txt"));
-//        TextInputFormat.addInputPath(job, new Path("s3://bucket163897429777/3_grams.txt"));
-        TextInputFormat.addInputPath(job, new Path("s3://datasets.elasticmapreduce/ngrams/books/20090715/eng-us-all/3gram/data"));
-//        FileOutputFormat.setOutputPath(job, new Path("/home/spl211/IdeaProjects/MapReduceProject/output_step_11"));
-        FileOutputFormat.setOutputPath(job, new Path("s3://bucket163897429777/output_step_11"));
-        System.exit(job.waitForCompletion(true) ? 0 : 1);
+        if (Vocabulary.isEnabled(conf))
+            Vocabulary.addCacheFile(job);
+        FileInputFormat.addInputPath(job, input);
+        FileOutputFormat.setOutputPath(job, output);
+        return job;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Pipeline.main("step1", args);
     }
 
 
@@ -2,18 +2,37 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Partitioner;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
-import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
 
 public class Step2 {
+    private static final Text STARS = new Text("**");
+
+    // Named output of the <** r>, <N split r> and <T split r> records (stats-r-xxxxx files next to the 3-grams)
+    public static final String STATISTICS = "stats";
+
+    public enum Counter {
+        STAR_RECORDS,    // <** **> and <** r> map output records
+        TRIGRAM_RECORDS, // <w1 w2 w3> map output records
+        N_RECORDS,       // <N split r> records, before the AdaptiveCombiner
+        T_RECORDS,       // <T split r> records, before the AdaptiveCombiner
+        SKETCH_RECORDS,  // <S cell> map output records (RSketch)
+        DISTINCT_R,      // r values with statistics
+        SKETCH_TAIL_R,   // r values whose statistics are Count-Min estimates (RSketch)
+        SKETCH_N_ERROR,  // bound on the error of an estimated N_r_0 / N_r_1 (RSketch.errorBound)
+        SKETCH_T_ERROR   // bound on the error of an estimated T_r_01 / T_r_10
+    }
+
     /**
      * Input:
      * 1) Key = lineId Value = <w1 w2 w3 \t r \t R1 \t R2>
@@ -26,29 +45,119 @@ public class Step2 {
      * 4) Key = <T 1 R0> Value = R1 (instances)
      * 5) Key = <N 1 R1> Value = 1 (types)
      * 6) Key = <T 0 R1> Value = R0 (instances)
-     * 7) Key = <**, r> Value = r (For each <w1,w2,w3> that in the input)
+     * 7) Key = <**, r> Value = r (For each r in the input, once per task - all of them go to one reducer)
+     * With RSketch.ENABLED 3) - 6) are added to a sketch instead, written on cleanup:
+     * 8) Key = <S cell> Value = the sum of the cell (For each non-zero cell of the sketch of the task)
+     * With AdaptiveCombiner.ENABLED (default) the job runs no combiner - 3) - 6) are summed by the
+     * AdaptiveCombiner of the task, and the other records have nothing to combine with in their task.
      */
-    private static class Map extends Mapper<LongWritable, Text, Text, Text> {
+    private static class Map extends Mapper<Writable, Writable, TaggedKey, LongWritable> {
+        private final TaggedKey outKey = new TaggedKey();
+        private final LongWritable outValue = new LongWritable();
+        private final Text trigram = new Text();
+        // The r values already written by this task
+        private final HashSet<Long> rs = new HashSet<>();
+        // The N and T statistics of the task - null when RSketch is disabled
+        private RSketch sketch;
+        // Sums the N and T records - null when disabled
+        private AdaptiveCombiner<TaggedKey> combiner;
+        // Map output records per tag - added to the Counter group on cleanup
+        private long starRecords = 0, trigramRecords = 0, nRecords = 0, tRecords = 0, sketchRecords = 0;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            super.setup(context);
+            if (RSketch.isEnabled(context.getConfiguration()))
+                sketch = new RSketch(context.getConfiguration());
+            else if (AdaptiveCombiner.isEnabled(context.getConfiguration()))
+                combiner = new AdaptiveCombiner<>(context);
+        }
+
         @Override
-        public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+        public void map(Writable key, Writable value, Context context) throws IOException, InterruptedException {
+            if (value instanceof CountsWritable) { // SequenceFile input - Key = <w1 w2 w3> OR <**> Value = <r R0 R1> OR <occurrences>
+                CountsWritable counts = (CountsWritable) value;
+                if (key.equals(STARS)) {
+                    outValue.set(counts.getR());
+                    context.write(outKey.setTotal(), outValue);
+                    starRecords++;
+                } else
+                    write((Text) key, counts.getR(), counts.getR0(), counts.getR1(), context);
+                return;
+            }
             String[] keyValue = value.toString().split("\t"); // [w1 w2 w3, r, R1, R2] OR [**, occurrences]
-            String[] words = keyValue[0].split(" "); // [w1, w2, w3] OR [**]
-            if (words.length < 3)  // Value = <** occurrences>
-                context.write(new Text(String.format("%s %s", "**", "**")), new Text(keyValue[1])); // 1) Key = <* *> Value = occurrences
-            else { // Value = <w1, w2, w3 \t r \t R1 \t R2>
-                String w1 = words[0], w2 = words[1], w3 = words[2];
-                String r = keyValue[1], R0 = keyValue[2], R1 = keyValue[3];
-                context.write(new Text(String.format("%s %s %s", w1, w2, w3)), new Text(r)); // 2) Key = <w1 w2 w3> Value = r
-                if (Long.parseLong(R0) > 0) {
-                    context.write(new Text(String.format("%s %s %s", "N", 0, R0)), new Text("1")); // 3) Key = <N 0 r> Value = 1 (types)
-                    context.write(new Text(String.format("%s %s %s", "T", 1, R0)), new Text(R1)); // 4) Key = <T 1 R0> Value = R1 (instances)
+            if (keyValue[0].equals("**")) { // Value = <** occurrences>
+                outValue.set(Long.parseLong(keyValue[1]));
+                context.write(outKey.setTotal(), outValue); // 1) Key = <* *> Value = occurrences
+                starRecords++;
+            } else { // Value = <w1, w2, w3 \t r \t R1 \t R2>
+                trigram.set(keyValue[0]);
+                write(trigram, Long.parseLong(keyValue[1]), Long.parseLong(keyValue[2]), Long.parseLong(keyValue[3]), context);
+            }
+        }
+
+        private void write(Text trigram, long r, long R0, long R1, Context context) throws IOException, InterruptedException {
+            outValue.set(r);
+            context.write(outKey.setTrigram(r, trigram), outValue); // 2) Key = <w1 w2 w3> Value = r
+            trigramRecords++;
+            if (sketch != null) {
+                if (R0 > 0) {
+                    sketch.add(TaggedKey.Tag.N, 0, R0, 1);
+                    sketch.add(TaggedKey.Tag.T, 1, R0, R1);
+                }
+                if (R1 > 0) {
+                    sketch.add(TaggedKey.Tag.N, 1, R1, 1);
+                    sketch.add(TaggedKey.Tag.T, 0, R1, R0);
                 }
-                if (Long.parseLong(R1) > 0) {
-                    context.write(new Text(String.format("%s %s %s", "N", 1, R1)), new Text("1")); // 5) Key = <N 1 r> Value = 1 (types)
-                    context.write(new Text(String.format("%s %s %s", "T", 0, R1)), new Text(R0)); // 6) Key = <T 0 R1> Value = R0 (instances)
+            } else {
+                if (R0 > 0) {
+                    writeStatistic(outKey.set(TaggedKey.Tag.N, 0, R0), 1, context); // 3) Key = <N 0 r> Value = 1 (types)
+                    writeStatistic(outKey.set(TaggedKey.Tag.T, 1, R0), R1, context); // 4) Key = <T 1 R0> Value = R1 (instances)
+                    nRecords++;
+                    tRecords++;
+                }
+                if (R1 > 0) {
+                    writeStatistic(outKey.set(TaggedKey.Tag.N, 1, R1), 1, context); // 5) Key = <N 1 r> Value = 1 (types)
+                    writeStatistic(outKey.set(TaggedKey.Tag.T, 0, R1), R0, context); // 6) Key = <T 0 R1> Value = R0 (instances)
+                    nRecords++;
+                    tRecords++;
+                }
+            }
+            if (rs.add(r)) {
+                outValue.set(r);
+                context.write(outKey.set(TaggedKey.Tag.R, 0, r), outValue); // 7) Key = <** r> Value = r
+                starRecords++;
+            }
+        }
+
+        private void writeStatistic(TaggedKey key, long value, Context context) throws IOException, InterruptedException {
+            if (combiner != null) {
+                combiner.add(key, value);
+                return;
+            }
+            outValue.set(value);
+            context.write(key, outValue);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            if (combiner != null)
+                combiner.close();
+            if (sketch != null) {
+                for (int cell = 0; cell < sketch.cells(); cell++) {
+                    if (sketch.getCell(cell) == 0)
+                        continue;
+                    outValue.set(sketch.getCell(cell));
+                    context.write(outKey.set(TaggedKey.Tag.SKETCH, 0, cell), outValue); // 8) Key = <S cell> Value = sum
+                    sketchRecords++;
                 }
-                context.write(new Text(String.format("%s %s", "**", r)), new Text(r)); // 7) Key = <** r> Value = r
             }
+            context.getCounter(Counter.STAR_RECORDS).increment(starRecords);
+            context.getCounter(Counter.TRIGRAM_RECORDS).increment(trigramRecords);
+            context.getCounter(Counter.N_RECORDS).increment(nRecords);
+            context.getCounter(Counter.T_RECORDS).increment(tRecords);
+            context.getCounter(Counter.SKETCH_RECORDS).increment(sketchRecords);
+            super.cleanup(context);
         }
     }
 
@@ -61,51 +170,113 @@ public class Step2 {
      * 5) Key = <N 1 R1> Value = 1 (types)
      * 6) Key = <T 0 R1> Value = R0 (instances)
      * 7) Key = <**, r> Value = r (For each <w1,w2,w3> that in the input)
+     * 8) Key = <S cell> Value = the sum of the cell (RSketch)
      * <p>
      * Output:
-     * 1) Key = <** r> Value = occurrences (Number of total 3-grams in all the corpus)
-     * 2) Key = <w1 w2 w3> Value = r
-     * 3) Key = <N 0 r> Value = occurrences (Sum of types) - N_r_0
-     * 4) Key = <N 1 r> Value = occurrences (Sum of types) - N_r_1
-     * 5) Key = <T 0 r> Value = occurrences (Sum of instances) - T_r_01
-     * 6) Key = <T 1 r> Value = occurrences (Sum of instances) - T_r_10
+     * 1) Key = <** r> Value = occurrences (Number of total 3-grams in all the corpus) - stats file
+     * 2) Key = <w1 w2 w3> Value = r - part file
+     * 3) Key = <N 0 r> Value = occurrences (Sum of types) - N_r_0 - stats file
+     * 4) Key = <N 1 r> Value = occurrences (Sum of types) - N_r_1 - stats file
+     * 5) Key = <T 0 r> Value = occurrences (Sum of instances) - T_r_01 - stats file
+     * 6) Key = <T 1 r> Value = occurrences (Sum of instances) - T_r_10 - stats file
      * <p>
      * N_r_0 = is the number of n-gram types occurring r times in the first part of the corpus.
      * T_r_01 = is the total number the n-grams of the first part (of N_r_0) appear the second part of the corpus (instances).
      * N_r_1 = is the number of n-gram types occurring r times in the second part of the corpus.
      * Tr_10 = is the total number the n-grams of the second part (of N_r_1) appear in the first part of the corpus (instance).
+     * <p>
+     * With RSketch.ENABLED the reducer of the ** records merges the sketches of all the map tasks and
+     * writes 3) - 6) on cleanup - exactly for the r values below the exact limit, and estimated for every
+     * larger r of a 3-gram (an r of a <** r> record).
      */
-    public static class Reduce extends Reducer<Text, Text, Text, Text> {
+    public static class Reduce extends Reducer<TaggedKey, LongWritable, TaggedKey, LongWritable> {
         protected long N = 0;
+        private final LongWritable outValue = new LongWritable();
+        private MultipleOutputs<TaggedKey, LongWritable> statistics;
+        // The merged sketch and the r values of the tail - null when RSketch is disabled
+        private RSketch sketch;
+        private long[] tail = new long[1024];
+        private int tailSize = 0;
+        private boolean hasSketch = false;
 
         @Override
-        protected void reduce(Text key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
-            // [**] OR [w1, w2, w3] OR [N, 0, r] OR [N, 1, r] OR [T, 0, r]  OR [T, 1, r]
-            String[] words = key.toString().split(" ");
-            String lastWord = "";
-            if (words[0].equals("**")) {
-                for (Text N_OR_r : values) {
-                    if (words[1].equals("**")) {
-                        N = Long.parseLong(N_OR_r.toString());
-                    } else {
-                        String r = N_OR_r.toString();
-                        if (!lastWord.equals(r))
-                            context.write(new Text(String.format("%s %s", "**", r)), new Text(String.format("%d", N)));
-                        lastWord = r;
-                    }
-                }
-            } else if (words[0].equals("N") || words[0].equals("T")) {
-                long sum = 0;
-                for (Text value : values) {
-                    try {
-                        sum += Long.parseLong(value.toString());
-                    } catch (Exception e) {
-                        e.printStackTrace();
+        protected void setup(Context context) throws IOException, InterruptedException {
+            super.setup(context);
+            statistics = new MultipleOutputs<>(context);
+            if (RSketch.isEnabled(context.getConfiguration()))
+                sketch = new RSketch(context.getConfiguration());
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            if (hasSketch)
+                writeSketch(context);
+            statistics.close();
+            super.cleanup(context);
+        }
+
+        /**
+         * Writes the N and T statistics of the merged sketch and reports the error bounds of its tail.
+         */
+        private void writeSketch(Context context) throws IOException, InterruptedException {
+            TaggedKey key = new TaggedKey();
+            for (long r = 1; r < sketch.getExactLimit(); r++)
+                writeSketch(key, r);
+            for (int i = 0; i < tailSize; i++)
+                writeSketch(key, tail[i]);
+            context.getCounter(Counter.SKETCH_TAIL_R).increment(tailSize);
+            context.getCounter(Counter.SKETCH_N_ERROR).increment(Math.max(sketch.errorBound(TaggedKey.Tag.N, 0), sketch.errorBound(TaggedKey.Tag.N, 1)));
+            context.getCounter(Counter.SKETCH_T_ERROR).increment(Math.max(sketch.errorBound(TaggedKey.Tag.T, 0), sketch.errorBound(TaggedKey.Tag.T, 1)));
+        }
+
+        /**
+         * Output: <N split r> and <T 1-split r> for the splits where r appears (N_r_split > 0), like 3) - 6).
+         */
+        private void writeSketch(TaggedKey key, long r) throws IOException, InterruptedException {
+            for (int split = 0; split < 2; split++) {
+                long types = sketch.estimate(TaggedKey.Tag.N, split, r);
+                if (types == 0)
+                    continue;
+                outValue.set(types);
+                statistics.write(STATISTICS, key.set(TaggedKey.Tag.N, split, r), outValue);
+                outValue.set(sketch.estimate(TaggedKey.Tag.T, 1 - split, r));
+                statistics.write(STATISTICS, key.set(TaggedKey.Tag.T, 1 - split, r), outValue);
+            }
+        }
+
+        @Override
+        protected void reduce(TaggedKey key, Iterable<LongWritable> values, Context context) throws IOException, InterruptedException {
+            switch (key.getTag()) {
+                case TOTAL: // <** **> sorts before every <** r>
+                    for (LongWritable value : values)
+                        N = value.get();
+                    break;
+                case R: // one reduce call for every existing r
+                    context.getCounter(Counter.DISTINCT_R).increment(1);
+                    outValue.set(N);
+                    statistics.write(STATISTICS, key, outValue);
+                    if (sketch != null && key.getR() >= sketch.getExactLimit()) {
+                        if (tailSize == tail.length)
+                            tail = Arrays.copyOf(tail, tailSize * 2);
+                        tail[tailSize++] = key.getR();
                     }
-                }
-                context.write(key, new Text(String.format("%d", sum)));
-            } else // words = [w1, w2, w3]
-                context.write(key, new Text(values.iterator().next()));
+                    break;
+                case SKETCH: // merged on cleanup, after every <** r>
+                    for (LongWritable value : values)
+                        sketch.addCell((int) key.getR(), value.get());
+                    hasSketch = true;
+                    break;
+                case N:
+                case T:
+                    long sum = 0;
+                    for (LongWritable value : values)
+                        sum += value.get();
+                    outValue.set(sum);
+                    statistics.write(STATISTICS, key, outValue);
+                    break;
+                default: // <w1 w2 w3>
+                    context.write(key, values.iterator().next());
+            }
         }
     }
 
@@ -134,51 +305,70 @@ public class Step2 {
      * N_r_1 = is the number of n-gram types occurring r times in the second part of the corpus.
      * Tr_10 = is the total number the n-grams of the second part (of N_r_1) appear in the first part of the corpus (instance).
      */
-    public static class Combiner extends Reducer<Text, Text, Text, Text> {
+    public static class Combiner extends Reducer<TaggedKey, LongWritable, TaggedKey, LongWritable> {
+        private final LongWritable outValue = new LongWritable();
+
         @Override
-        protected void reduce(Text key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
-            // [**] OR [w1, w2, w3] OR [N, 0, r] OR [N, 1, r] OR [T, 0, r]  OR [T, 1, r]
-            String[] words = key.toString().split(" ");
-            if (words[0].equals("N") || words[0].equals("T")) {
-                long sum = 0;
-                for (Text value : values) {
-                    try {
-                        sum += Long.parseLong(value.toString());
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-                context.write(key, new Text(String.format("%d", sum)));
-            } else
-                for (Text value : values)
-                    context.write(key, value);
+        protected void reduce(TaggedKey key, Iterable<LongWritable> values, Context context) throws IOException, InterruptedException {
+            switch (key.getTag()) {
+                case N:
+                case T:
+                case SKETCH: // sketches are merged by adding their cells
+                    long sum = 0;
+                    for (LongWritable value : values)
+                        sum += value.get();
+                    outValue.set(sum);
+                    context.write(key, outValue);
+                    break;
+                case R: // only marks r, one is enough
+                    context.write(key, values.iterator().next());
+                    break;
+                default:
+                    for (LongWritable value : values)
+                        context.write(key, value);
+            }
         }
     }
 
-    public static class Partition extends Partitioner<Text, Text> {
+    /**
+     * All the ** records go to the same reducer so <** **> reaches it before every <** r>, and the
+     * sketch cells go to it as well.
+     */
+    public static class Partition extends Partitioner<TaggedKey, LongWritable> {
         @Override
-        public int getPartition(Text key, Text value, int numPartitions) {
-            return Math.abs((key.toString().split(" ")[0]).hashCode() % numPartitions);
+        public int getPartition(TaggedKey key, LongWritable value, int numPartitions) {
+            switch (key.getTag()) {
+                case TOTAL:
+                case R:
+                case SKETCH:
+                    return 0;
+                default:
+                    return (key.hashCode() & Integer.MAX_VALUE) % numPartitions;
+            }
         }
     }
 
-    public static void main(String[] args) throws Exception {
-        Configuration conf = new Configuration();
-        Job job = Job.getInstance(conf);
+    public static Job createJob(Configuration conf, Path input, Path output) throws IOException {
+        Job job = Job.getInstance(conf, "Step2");
         job.setJarByClass(Step2.class);
         job.setMapperClass(Map.class);
         job.setReducerClass(Reduce.class);
-        job.setOutputKeyClass(Text.class);
-        job.setOutputValueClass(Text.class);
+        job.setOutputKeyClass(TaggedKey.class);
+        job.setOutputValueClass(LongWritable.class);
+        job.setSortComparatorClass(TaggedKey.Comparator.class);
         job.setPartitionerClass(Step2.Partition.class);
-        job.setOutputFormatClass(TextOutputFormat.class);
-        job.setInputFormatClass(TextInputFormat.class);
-        job.setCombinerClass(Step2.Combiner.class);
-//        FileInputFormat.addInputPath(job, new Path("/home/spl211/IdeaProjects/MapReduceProject/output_step_11/part-r-00000"));
-        FileInputFormat.addInputPath(job, new Path("s3://bucket163897429777/output_step_11"));
-//        FileOutputFormat.setOutputPath(job, new Path("/home/spl211/IdeaProjects/MapReduceProject/output_step_22"));
-        FileOutputFormat.setOutputPath(job, new Path("s3://bucket163897429777/output_step_22"));
-        System.exit(job.waitForCompletion(true) ? 0 : 1);
+        IntermediateFormat.setOutput(job);
+        IntermediateFormat.setInput(job);
+        if (!AdaptiveCombiner.isEnabled(conf))
+            job.setCombinerClass(Step2.Combiner.class);
+        MultipleOutputs.addNamedOutput(job, STATISTICS, IntermediateFormat.outputFormat(conf), TaggedKey.class, LongWritable.class);
+        FileInputFormat.addInputPath(job, input);
+        FileOutputFormat.setOutputPath(job, output);
+        return job;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Pipeline.main("step2", args);
     }
 
 
@@ -0,0 +1,205 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * Step2 and Step3 fused: replaces the two steps (and the output_step_22 copy of the corpus) with
+ * 1) a statistics job that shuffles only the N/T records and writes the small r table.
+ * 2) a map-only join that reads the Step1 output again and computes the probability of every
+ * 3-gram with the r table loaded from the distributed cache.
+ * The output is the same as the output of Step3.
+ */
+public class Step23 {
+    private static final Text STARS = new Text("**");
+
+    /**
+     * Input:
+     * 1) Key = lineId Value = <w1 w2 w3 \t r \t R0 \t R1>
+     * 2) Key - lineId Value = <** \t occurrences>
+     * <p>
+     * Output:
+     * 1) Key = <** **> Value = occurrences (Number of total 3-grams in all the corpus)
+     * 2) Key = <N 0 R0> Value = 1 (types)
+     * 3) Key = <T 1 R0> Value = R1 (instances)
+     * 4) Key = <N 1 R1> Value = 1 (types)
+     * 5) Key = <T 0 R1> Value = R0 (instances)
+     * With AdaptiveCombiner.ENABLED (default) they are summed by the AdaptiveCombiner of the task, and
+     * the job runs no combiner.
+     */
+    private static class StatisticsMap extends Mapper<Writable, Writable, TaggedKey, LongWritable> {
+        private final TaggedKey outKey = new TaggedKey();
+        private final LongWritable outValue = new LongWritable();
+        // Sums the records - null when disabled
+        private AdaptiveCombiner<TaggedKey> combiner;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            super.setup(context);
+            if (AdaptiveCombiner.isEnabled(context.getConfiguration()))
+                combiner = new AdaptiveCombiner<>(context);
+        }
+
+        @Override
+        public void map(Writable key, Writable value, Context context) throws IOException, InterruptedException {
+            if (value instanceof CountsWritable) { // SequenceFile input
+                CountsWritable counts = (CountsWritable) value;
+                if (key.equals(STARS))
+                    write(outKey.setTotal(), counts.getR(), context);
+                else
+                    write(counts.getR0(), counts.getR1(), context);
+                return;
+            }
+            String[] keyValue = value.toString().split("\t"); // [w1 w2 w3, r, R0, R1] OR [**, occurrences]
+            if (keyValue.length < 4) { // Value = <** occurrences>
+                write(outKey.setTotal(), Long.parseLong(keyValue[1]), context);
+                return;
+            }
+            write(Long.parseLong(keyValue[2]), Long.parseLong(keyValue[3]), context);
+        }
+
+        private void write(long R0, long R1, Context context) throws IOException, InterruptedException {
+            if (R0 > 0) {
+                write(outKey.set(TaggedKey.Tag.N, 0, R0), 1, context);
+                write(outKey.set(TaggedKey.Tag.T, 1, R0), R1, context);
+            }
+            if (R1 > 0) {
+                write(outKey.set(TaggedKey.Tag.N, 1, R1), 1, context);
+                write(outKey.set(TaggedKey.Tag.T, 0, R1), R0, context);
+            }
+        }
+
+        private void write(TaggedKey key, long value, Context context) throws IOException, InterruptedException {
+            if (combiner != null) {
+                combiner.add(key, value);
+                return;
+            }
+            outValue.set(value);
+            context.write(key, outValue);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            if (combiner != null)
+                combiner.close();
+            super.cleanup(context);
+        }
+    }
+
+    /**
+     * Sums the values of every key, used as the combiner as well.
+     * <p>
+     * Output:
+     * 1) Key = <** **> Value = N
+     * 2) Key = <N 0 r> / <N 1 r> Value = N_r_0 / N_r_1
+     * 3) Key = <T 0 r> / <T 1 r> Value = T_r_01 / T_r_10
+     */
+    public static class StatisticsReduce extends Reducer<TaggedKey, LongWritable, TaggedKey, LongWritable> {
+        private final LongWritable outValue = new LongWritable();
+
+        @Override
+        protected void reduce(TaggedKey key, Iterable<LongWritable> values, Context context) throws IOException, InterruptedException {
+            long sum = 0;
+            for (LongWritable value : values)
+                sum += value.get();
+            outValue.set(sum);
+            context.write(key, outValue);
+        }
+    }
+
+    /**
+     * Setup: loads the r table written by the statistics job from the distributed cache.
+     * <p>
+     * Input:
+     * 1) Key = lineId Value = <w1 w2 w3 \t r \t R0 \t R1>
+     * 2) Key - lineId Value = <** \t occurrences> (skipped)
+     * <p>
+     * Output:
+     * Key = w1 w2 w3 Value = probability
+     */
+    private static class JoinMap extends Mapper<Writable, Writable, Text, Writable> {
+        private ProbabilityTable probabilities;
+        private boolean binary;
+        private final Text outKey = new Text();
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            super.setup(context);
+            RStatistics statistics = new RStatistics();
+            for (URI file : context.getCacheFiles())
+                statistics.load(context.getConfiguration(), new Path(file));
+            probabilities = new ProbabilityTable(statistics);
+            binary = IntermediateFormat.isBinaryProbabilities(context.getConfiguration());
+        }
+
+        @Override
+        public void map(Writable key, Writable value, Context context) throws IOException, InterruptedException {
+            if (value instanceof CountsWritable) { // SequenceFile input
+                if (!key.equals(STARS))
+                    context.write((Text) key, probabilities.value(((CountsWritable) value).getR(), binary));
+                return;
+            }
+            String[] keyValue = value.toString().split("\t");
+            if (keyValue.length < 4) // <** occurrences>
+                return;
+            outKey.set(keyValue[0]);
+            context.write(outKey, probabilities.value(Long.parseLong(keyValue[1]), binary));
+        }
+    }
+
+    public static Job createStatisticsJob(Configuration conf, Path input, Path statistics) throws IOException {
+        Job job = Job.getInstance(conf, "Step23 statistics");
+        job.setJarByClass(Step23.class);
+        job.setMapperClass(StatisticsMap.class);
+        if (!AdaptiveCombiner.isEnabled(conf))
+            job.setCombinerClass(StatisticsReduce.class);
+        job.setReducerClass(StatisticsReduce.class);
+        job.setOutputKeyClass(TaggedKey.class);
+        job.setOutputValueClass(LongWritable.class);
+        job.setSortComparatorClass(TaggedKey.Comparator.class);
+        job.setNumReduceTasks(1); // The r table is small, keep it in a single file
+        IntermediateFormat.setInput(job);
+        IntermediateFormat.setOutput(job);
+        FileInputFormat.addInputPath(job, input);
+        FileOutputFormat.setOutputPath(job, statistics);
+        return job;
+    }
+
+    public static Job createJoinJob(Configuration conf, Path input, Path statistics, Path output) throws IOException {
+        Job job = Job.getInstance(conf, "Step23 join");
+        job.setJarByClass(Step23.class);
+        job.setMapperClass(JoinMap.class);
+        job.setNumReduceTasks(0);
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(IntermediateFormat.probabilityClass(conf));
+        IntermediateFormat.setInput(job);
+        IntermediateFormat.setOutput(job);
+        for (FileStatus file : statistics.getFileSystem(conf).globStatus(new Path(statistics, "part-*")))
+            job.addCacheFile(file.getPath().toUri());
+        FileInputFormat.addInputPath(job, input);
+        FileOutputFormat.setOutputPath(job, output);
+        return job;
+    }
+
+    public static boolean runStatistics(Configuration conf, Path input, Path statistics) throws Exception {
+        return Metrics.waitForCompletion(createStatisticsJob(conf, input, statistics), true);
+    }
+
+    public static boolean runJoin(Configuration conf, Path input, Path statistics, Path output) throws Exception {
+        return Metrics.waitForCompletion(createJoinJob(conf, input, statistics, output), true);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Pipeline.main("step23", args);
+    }
+}
@@ -1,20 +1,29 @@
+import org.apache.hadoop.conf.Configurable;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DoubleWritable;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Partitioner;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
-import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 
 import java.io.IOException;
+import java.net.URI;
 
 
 public class Step3 {
+    // Join the Step2 statistics map-side and compute the probabilities with no reducers
+    public static final String MAP_SIDE_JOIN = "step3.map-side-join";
+    // Sample the 3-grams first and spread the ones of every heavy r over several reducers (SkewPlan)
+    public static final String SKEW_AWARE = "step3.skew-aware";
+
     /**
      * Input:
      * 1) Key = <** r> Value = occurrences (Number of total 3-grams in all the corpus)
@@ -25,111 +34,235 @@ public class Step3 {
      * 6) Key = <T 1 r> Value = occurrences (Sum of instances) - T_r_10
      * <p>
      * Output:
-     * 1) Key = <r, **> Value = <** N>
-     * 2) Key = <r, **>  Value = <N 0 N_r_0>
-     * 3) Key = <r, **>  Value = <N 1 N_r_1>
-     * 4) Key = <r, **>  Value = <T 0 T_r_0>
-     * 5) Key = <r, **>  Value = <T 1 T_r_1>
-     * 6) Key = <r, w1 w2 w3> Value = <w1 w2 w3>
+     * 1) Key = <r, **> Value = N
+     * 2) Key = <r, N 0>  Value = N_r_0
+     * 3) Key = <r, N 1>  Value = N_r_1
+     * 4) Key = <r, T 0>  Value = T_r_0
+     * 5) Key = <r, T 1>  Value = T_r_1
+     * 6) Key = <r, w1 w2 w3> Value = r
+     * The statistics records 1) - 5) of a heavy r are written once for every salt of r.
      */
-    private static class Map extends Mapper<LongWritable, Text, Text, Text> {
+    private static class Map extends Mapper<Writable, Writable, TaggedKey, LongWritable> {
+        private final TaggedKey outKey = new TaggedKey();
+        private final LongWritable outValue = new LongWritable();
+        private final Text trigram = new Text();
+        private SkewPlan plan;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            super.setup(context);
+            plan = new SkewPlan(context.getConfiguration());
+        }
+
         @Override
-        public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+        public void map(Writable key, Writable value, Context context) throws IOException, InterruptedException {
+            if (key instanceof TaggedKey) { // SequenceFile input - already keyed by r
+                write((TaggedKey) key, (LongWritable) value, context);
+                return;
+            }
             String[] keyValue = value.toString().split("\t");
             String[] words = keyValue[0].split(" ");
-            if (words[0].equals("N") || words[0].equals("T"))
-                context.write(new Text(String.format("%s %s", words[2], "**")), new Text(String.format("%s %s %s", words[0], words[1], keyValue[1])));
-            else if (words[0].equals("**")) {
-                context.write(new Text(String.format("%s %s", words[1], "**")), new Text(String.format("%s %s", "**", keyValue[1]))); // key - <r, **> value - <** occurrences>
-            } else
-                context.write(new Text(String.format("%s %s %s %s", keyValue[1], words[0], words[1], words[2])), new Text(String.format("%s %s %s", words[0], words[1], words[2]))); // <r, w1 w2 w3>  value - <w1 w2 w3>
+            outValue.set(Long.parseLong(keyValue[1]));
+            if (words[0].equals("N"))
+                write(outKey.set(TaggedKey.Tag.N, Integer.parseInt(words[1]), Long.parseLong(words[2])), outValue, context); // key - <r, N split> value - N_r_split
+            else if (words[0].equals("T"))
+                write(outKey.set(TaggedKey.Tag.T, Integer.parseInt(words[1]), Long.parseLong(words[2])), outValue, context); // key - <r, T split> value - T_r_split
+            else if (words[0].equals("**"))
+                write(outKey.set(TaggedKey.Tag.R, 0, Long.parseLong(words[1])), outValue, context); // key - <r, **> value - N
+            else {
+                trigram.set(keyValue[0]);
+                context.write(outKey.setTrigram(outValue.get(), trigram), outValue); // key - <r, w1 w2 w3> value - r
+            }
+        }
+
+        private void write(TaggedKey key, LongWritable value, Context context) throws IOException, InterruptedException {
+            // Every reducer of a heavy r needs its statistics
+            int salts = key.getTag() == TaggedKey.Tag.TRIGRAM ? 1 : plan.salts(key.getR());
+            for (int salt = 0; salt < salts; salt++)
+                context.write(key.setSalt(salt), value);
         }
     }
 
 
     /**
      * Input:
-     * 1) Key = <r **> Value = [** occurrences, N 0 occ, N 1 occ, T 0 occ, T 1 occ]
-     * 2) Key = <r w1 w2 w3>  Value = [w1 w2 w3>]
+     * 1) Key = <r N/T/**> Value = occurrences - sorted before the 3-grams of r
+     * 2) Key = <r w1 w2 w3>  Value = r
      * <p>
      * Output:
      * Key = w1 w2 w3 Value = probability>
+     * The probability of r is computed and formatted once, for its first 3-gram.
      */
-    public static class Reduce extends Reducer<Text, Text, Text, Text> {
+    public static class Reduce extends Reducer<TaggedKey, LongWritable, Text, Writable> {
+        protected long r = TaggedKey.TOTAL_R;
         protected double N = 0.0;
         protected double N0 = 0.0;
         protected double N1 = 0.0;
         protected double T0 = 0.0;
         protected double T1 = 0.0;
+        // The probability of r - null until its first 3-gram
+        private Writable probability;
+        private boolean binary;
+        private final Text text = new Text();
+        private final DoubleWritable value = new DoubleWritable();
 
         @Override
-        protected void reduce(Text key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
-            String[] words = key.toString().split(" ");
+        protected void setup(Context context) throws IOException, InterruptedException {
+            super.setup(context);
+            binary = IntermediateFormat.isBinaryProbabilities(context.getConfiguration());
+        }
 
-            if (words[1].equals("**")) {
+        @Override
+        protected void reduce(TaggedKey key, Iterable<LongWritable> values, Context context) throws IOException, InterruptedException {
+            if (key.getR() != r) { // First record of a new r
+                r = key.getR();
                 N = 0.0;
                 N0 = 0.0;
                 N1 = 0.0;
                 T0 = 0.0;
                 T1 = 0.0;
-                while (values.iterator().hasNext()) {
-                    String[] valueWords = values.iterator().next().toString().split(" ");
-                    switch (valueWords[0]) {
-                        case "**":
-                            N = (double) Long.parseLong(valueWords[1]);
-                            break;
-                        case "N":
-                            if (valueWords[1].equals("0"))
-                                N0 = (double) Long.parseLong(valueWords[2]);
-                            else
-                                N1 = (double) Long.parseLong(valueWords[2]);
-                            break;
-                        case "T":
-                            if (valueWords[1].equals("0"))
-                                T0 = (double) Long.parseLong(valueWords[2]);
-                            else
-                                T1 = (double) Long.parseLong(valueWords[2]);
-                            break;
-                    }
-                }
-            } else { // <w1, w2, w3>
-                Double probability;
-                Text three_grams = values.iterator().next();
-                if (N != 0 && (N0 + N1) != 0) {
-                    probability = (T0 + T1) / (N * (N0 + N1));
-                    context.write(three_grams, new Text(String.valueOf(probability)));
-                } else
-                    context.write(three_grams, new Text(String.valueOf(0)));
+                probability = null;
+            }
+            double occurrences = (double) values.iterator().next().get();
+            switch (key.getTag()) {
+                case R:
+                    N = occurrences;
+                    break;
+                case N:
+                    if (key.getSplit() == 0)
+                        N0 = occurrences;
+                    else
+                        N1 = occurrences;
+                    break;
+                case T:
+                    if (key.getSplit() == 0)
+                        T0 = occurrences;
+                    else
+                        T1 = occurrences;
+                    break;
+                case TRIGRAM:
+                    if (probability == null)
+                        probability = probability();
+                    context.write(key.getTrigram(), probability);
+                    break;
             }
         }
+
+        private Writable probability() {
+            boolean defined = N != 0 && (N0 + N1) != 0;
+            double p = defined ? (T0 + T1) / (N * (N0 + N1)) : 0;
+            if (binary) {
+                value.set(defined ? p : Double.NaN);
+                return value;
+            }
+            text.set(defined ? String.valueOf(p) : String.valueOf(0));
+            return text;
+        }
     }
 
-    public static class Partition extends Partitioner<Text, Text> {
+    /**
+     * Map-side join, used instead of Map and Reduce (no reducers).
+     * Setup: loads the stats files of Step2 (<** r>, <N split r>, <T split r>) from the distributed cache.
+     * <p>
+     * Input:
+     * Key = lineId Value = <w1 w2 w3 \t r>
+     * <p>
+     * Output:
+     * Key = w1 w2 w3 Value = probability (looked up in the ProbabilityTable)
+     */
+    private static class MapSideJoin extends Mapper<Writable, Writable, Text, Writable> {
+        private ProbabilityTable probabilities;
+        private boolean binary;
+        private final Text outKey = new Text();
 
         @Override
-        // Every r will come to the same partition
-        public int getPartition(Text key, Text value, int numPartitions) {
-            return Math.abs((key.toString().split(" ")[0]).hashCode() % numPartitions);
+        protected void setup(Context context) throws IOException, InterruptedException {
+            super.setup(context);
+            RStatistics statistics = new RStatistics();
+            for (URI file : context.getCacheFiles())
+                statistics.load(context.getConfiguration(), new Path(file));
+            probabilities = new ProbabilityTable(statistics);
+            binary = IntermediateFormat.isBinaryProbabilities(context.getConfiguration());
+        }
+
+        @Override
+        public void map(Writable key, Writable value, Context context) throws IOException, InterruptedException {
+            if (key instanceof TaggedKey) { // SequenceFile input - Key = <r, w1 w2 w3>
+                TaggedKey trigram = (TaggedKey) key;
+                context.write(trigram.getTrigram(), probabilities.value(trigram.getR(), binary));
+                return;
+            }
+            String[] keyValue = value.toString().split("\t"); // [w1 w2 w3, r]
+            outKey.set(keyValue[0]);
+            context.write(outKey, probabilities.value(Long.parseLong(keyValue[1]), binary));
         }
     }
 
+    /**
+     * Every r will come to the same partition - except a heavy r of the SkewPlan, whose 3-grams are hashed
+     * over its salts consecutive partitions, and whose statistics copy with salt s goes to the partition s of them.
+     */
+    public static class Partition extends Partitioner<TaggedKey, LongWritable> implements Configurable {
+        private Configuration conf;
+        private SkewPlan plan = new SkewPlan();
 
-    public static void main(String[] args) throws Exception {
-        Configuration conf = new Configuration();
-        Job job = Job.getInstance(conf);
+        @Override
+        public void setConf(Configuration conf) {
+            this.conf = conf;
+            plan = new SkewPlan(conf);
+        }
+
+        @Override
+        public Configuration getConf() {
+            return conf;
+        }
+
+        @Override
+        public int getPartition(TaggedKey key, LongWritable value, int numPartitions) {
+            int partition = (Long.hashCode(key.getR()) & Integer.MAX_VALUE) % numPartitions;
+            int salts = Math.min(plan.salts(key.getR()), numPartitions);
+            if (salts == 1)
+                return partition;
+            int salt = key.getTag() == TaggedKey.Tag.TRIGRAM ? (key.getTrigram().hashCode() & Integer.MAX_VALUE) % salts : key.getSalt();
+            return (partition + salt) % numPartitions;
+        }
+    }
+
+
+    /**
+     * @param input the Step2 output directory (3-grams in part-* and statistics in stats-*)
+     */
+    public static Job createJob(Configuration conf, Path input, Path output) throws IOException, InterruptedException {
+        Job job = Job.getInstance(conf, "Step3");
         job.setJarByClass(Step3.class);
-        job.setMapperClass(Map.class);
-        job.setReducerClass(Reduce.class);
         job.setOutputKeyClass(Text.class);
-        job.setOutputValueClass(Text.class);
-        job.setPartitionerClass(Step3.Partition.class);
-        job.setOutputFormatClass(TextOutputFormat.class);
-        job.setInputFormatClass(TextInputFormat.class);
-//        FileInputFormat.addInputPath(job, new Path("/home/spl211/IdeaProjects/MapReduceProject/output_step_22/part-r-00000"));
-        FileInputFormat.addInputPath(job, new Path("s3://bucket163897429777/output_step_22"));
-//        FileOutputFormat.setOutputPath(job, new Path("/home/spl211/IdeaProjects/MapReduceProject/output_step_33"));
-        FileOutputFormat.setOutputPath(job, new Path("s3://bucket163897429777/output_step_33"));
-        System.exit(job.waitForCompletion(true) ? 0 : 1);
+        job.setOutputValueClass(IntermediateFormat.probabilityClass(conf));
+        IntermediateFormat.setOutput(job);
+        IntermediateFormat.setInput(job);
+        if (conf.getBoolean(MAP_SIDE_JOIN, false)) {
+            job.setMapperClass(MapSideJoin.class);
+            job.setNumReduceTasks(0);
+            FileSystem fs = input.getFileSystem(conf);
+            for (FileStatus statistics : fs.globStatus(new Path(input, Step2.STATISTICS + "-*")))
+                job.addCacheFile(statistics.getPath().toUri());
+            FileInputFormat.addInputPath(job, new Path(input, "part-*"));
+        } else {
+            job.setMapperClass(Map.class);
+            job.setReducerClass(Reduce.class);
+            job.setMapOutputKeyClass(TaggedKey.class);
+            job.setMapOutputValueClass(LongWritable.class);
+            job.setSortComparatorClass(TaggedKey.Comparator.class);
+            job.setPartitionerClass(Step3.Partition.class);
+            FileInputFormat.addInputPath(job, input);
+            if (conf.getBoolean(SKEW_AWARE, false))
+                SkewPlan.sample(job);
+        }
+        FileOutputFormat.setOutputPath(job, output);
+        return job;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Pipeline.main("step3", args);
     }
 
 }
\ No newline at end of file
@@ -1,21 +1,196 @@
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.WritableComparable;
 import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
-import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.mapreduce.lib.partition.TotalOrderPartitioner;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.apache.hadoop.util.ReflectionUtils;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
 
 public class Step4 {
+    // Keep only the k most probable w3 of every (w1 w2) context - 0 keeps them all
+    public static final String TOP_K = "step4.top-k";
+    // Drop the 3-grams whose probability is below this
+    public static final String MIN_PROBABILITY = "step4.min-probability";
+    // Number of 3-grams a mapper keeps in its top-k heaps before it writes them out
+    public static final String TOP_K_BUFFER = "step4.top-k.buffer";
+
+    public enum Counter {
+        PRUNED_TRIGRAMS // 3-grams dropped by the top-k and min-probability cutoffs
+    }
+
+    /**
+     * The mappers of both sorts - reads <w1 w2 w3, probability>, drops the 3-grams below
+     * MIN_PROBABILITY and, with TOP_K, keeps a bounded min-heap of the best k 3-grams of every
+     * context it sees, so only candidates reach the sort. The heaps are written out on cleanup,
+     * or when they hold TOP_K_BUFFER 3-grams.
+     */
+    private abstract static class PruningMap<K> extends Mapper<Writable, Writable, K, Text> {
+        // Decodes the dictionary encoded 3-grams - null when disabled
+        private Vocabulary vocabulary;
+        private final Text decoded = new Text();
+        private final Text trigram = new Text();
+        private final Text probability = new Text();
+        private int k;
+        private double minProbability;
+        private int buffer;
+        private final HashMap<Text, PriorityQueue<Candidate>> heaps = new HashMap<>();
+        // The key of the current 3-gram, compared to the heap before a Candidate is taken for it
+        private final ProbabilityKey probe = new ProbabilityKey();
+        private int buffered = 0;
+        // Added to the Counter group on cleanup instead of once per 3-gram
+        private long pruned = 0;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            Configuration conf = context.getConfiguration();
+            if (Vocabulary.isEnabled(conf))
+                vocabulary = Vocabulary.fromCache(context);
+            k = conf.getInt(TOP_K, 0);
+            minProbability = conf.getDouble(MIN_PROBABILITY, 0);
+            buffer = conf.getInt(TOP_K_BUFFER, 100000);
+        }
+
+        @Override
+        public void map(Writable key, Writable value, Context context) throws IOException, InterruptedException {
+            double p;
+            boolean undefined = false;
+            if (value instanceof DoubleWritable) { // SequenceFile input with binary probabilities
+                trigram.set(vocabulary == null ? (Text) key : vocabulary.decode((Text) key, decoded));
+                p = ((DoubleWritable) value).get();
+                undefined = Double.isNaN(p);
+                if (undefined) // written as 0, like the text output
+                    p = 0;
+            } else if (key instanceof Text) { // SequenceFile input - Key = <w1 w2 w3> Value = probability
+                trigram.set(vocabulary == null ? (Text) key : vocabulary.decode((Text) key, decoded));
+                probability.set((Text) value);
+                p = Double.parseDouble(probability.toString());
+            } else {
+                Text line = (Text) value;
+                byte[] bytes = line.getBytes();
+                int tab = indexOf(bytes, line.getLength(), (byte) '\t');
+                trigram.set(bytes, 0, tab);
+                probability.set(bytes, tab + 1, line.getLength() - tab - 1);
+                p = Double.parseDouble(probability.toString());
+            }
+            if (p < minProbability) {
+                pruned++;
+                return;
+            }
+            if (value instanceof DoubleWritable) // formatted only when it passes the cutoff
+                probability.set(undefined ? String.valueOf(0) : String.valueOf(p));
+            if (k <= 0) {
+                write(trigram, p, probability, context);
+                return;
+            }
+
+            probe.set(trigram.getBytes(), 0, trigram.getLength(), p);
+            PriorityQueue<Candidate> heap = heaps.get(probe.getContext());
+            if (heap == null) {
+                heap = new PriorityQueue<>(Math.min(k, 16), Collections.reverseOrder());
+                heaps.put(new Text(probe.getContext()), heap);
+            }
+            Candidate candidate;
+            if (heap.size() == k) {
+                if (probe.compareTo(heap.peek().key) >= 0) {
+                    pruned++;
+                    return;
+                }
+                candidate = heap.poll(); // the evicted 3-gram's Candidate is taken for this one
+                buffered--;
+                pruned++;
+            } else {
+                candidate = new Candidate();
+            }
+            candidate.key.set(trigram.getBytes(), 0, trigram.getLength(), p);
+            candidate.probability.set(probability);
+            heap.add(candidate);
+            if (++buffered >= buffer)
+                flush(context);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            flush(context);
+            context.getCounter(Counter.PRUNED_TRIGRAMS).increment(pruned);
+        }
+
+        private void flush(Context context) throws IOException, InterruptedException {
+            for (PriorityQueue<Candidate> heap : heaps.values())
+                for (Candidate candidate : heap)
+                    write(candidate.key.getTrigram(trigram), candidate.key.getProbability(), candidate.probability, context);
+            heaps.clear();
+            buffered = 0;
+        }
+
+        /**
+         * Writes a 3-gram that passed the cutoffs.
+         */
+        protected abstract void write(Text trigram, double p, Text probability, Context context) throws IOException, InterruptedException;
+    }
+
+    /**
+     * A 3-gram in a top-k heap, ordered like the knowledge base - the best first.
+     */
+    private static class Candidate implements Comparable<Candidate> {
+        private final ProbabilityKey key = new ProbabilityKey();
+        private final Text probability = new Text();
+
+        @Override
+        public int compareTo(Candidate other) {
+            return key.compareTo(other.key);
+        }
+    }
+
+    /**
+     * Counts the 3-grams a reducer writes for its current (w1 w2) context. The reducer input is
+     * sorted by context and then by probability descending, so the first k 3-grams of every context
+     * are the best k of the merged mapper heaps.
+     */
+    private static class TopK {
+        private final int k;
+        private final Text context = new Text();
+        private int written = 0;
+
+        TopK(Configuration conf) {
+            k = conf.getInt(TOP_K, 0);
+        }
+
+        /**
+         * @return whether the next 3-gram of the context should be written
+         */
+        boolean next(byte[] context, int length) {
+            if (k <= 0)
+                return true;
+            if (WritableComparator.compareBytes(this.context.getBytes(), 0, this.context.getLength(), context, 0, length) != 0) {
+                this.context.set(context, 0, length);
+                written = 0;
+            }
+            return written++ < k;
+        }
+    }
 
     /**
      * Input:
@@ -24,12 +199,10 @@ public class Step4 {
      * Output:
      * <w1 w2 w3 probability, "">
      */
-    private static class Map extends Mapper<LongWritable, Text, Text, Text> {
-
+    private static class Map extends PruningMap<Text> {
         @Override
-        public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
-            String[] keyValue = value.toString().split("\t");
-            context.write(new Text(String.format("%s %s", keyValue[0], keyValue[1])), new Text(""));
+        protected void write(Text trigram, double p, Text probability, Context context) throws IOException, InterruptedException {
+            context.write(new Text(String.format("%s %s", trigram, probability)), new Text(""));
         }
     }
 
@@ -42,12 +215,34 @@ public class Step4 {
      */
 
     private static class Reduce extends Reducer<Text, Text, Text, Text> {
+        private TopK topK;
+        // Added to the Counter group on cleanup instead of once per 3-gram
+        private long pruned = 0;
+
+        @Override
+        protected void setup(Context context) {
+            topK = new TopK(context.getConfiguration());
+        }
+
         @Override
         protected void reduce(Text key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
-            String[] keyValue = key.toString().split(" "); // w1 w2 w3 probability
-            context.write(new Text((String.format("%s %s %s", keyValue[0], keyValue[1], keyValue[2]))), new Text(keyValue[3]));
+            byte[] bytes = key.getBytes(); // w1 .. wn probability
+            int ngram = NGram.contextLength(bytes, 0, key.getLength());
+            if (!topK.next(bytes, NGram.contextLength(bytes, 0, ngram))) {
+                pruned++;
+                return;
+            }
+            Text trigram = new Text();
+            trigram.set(bytes, 0, ngram);
+            Text probability = new Text();
+            probability.set(bytes, ngram + 1, key.getLength() - ngram - 1);
+            context.write(trigram, probability);
         }
 
+        @Override
+        protected void cleanup(Context context) {
+            context.getCounter(Counter.PRUNED_TRIGRAMS).increment(pruned);
+        }
     }
 
     public static class Partition extends Partitioner<Text, Text> {
@@ -64,37 +259,176 @@ public class Step4 {
         }
 
         @Override
-        public int compare(WritableComparable key1, WritableComparable key2) { // key: w1 w2 w3 probability
-            String[] words1 = key1.toString().split(" ");
-            String[] words2 = key2.toString().split(" ");
-            if (words1[0].equals(words2[0]) && words1[1].equals(words2[1])) {
-                if (Double.parseDouble(words1[3]) >= (Double.parseDouble(words2[3]))) {
-                    return -1;
-                } else
-                    return 1;
+        public int compare(WritableComparable key1, WritableComparable key2) { // key: w1 .. wn probability
+            String ngram1 = key1.toString(), ngram2 = key2.toString();
+            int probability1 = ngram1.lastIndexOf(' '), probability2 = ngram2.lastIndexOf(' ');
+            int word1 = ngram1.lastIndexOf(' ', probability1 - 1), word2 = ngram2.lastIndexOf(' ', probability2 - 1); // -1 for 1-grams
+            String context1 = word1 < 0 ? "" : ngram1.substring(0, word1);
+            String context2 = word2 < 0 ? "" : ngram2.substring(0, word2);
+            if (context1.equals(context2)) {
+                int cmp = Double.compare(Double.parseDouble(ngram2.substring(probability2 + 1)), Double.parseDouble(ngram1.substring(probability1 + 1))); // descending
+                if (cmp != 0)
+                    return cmp;
+                return new Text(ngram1.substring(word1 + 1, probability1)).compareTo(new Text(ngram2.substring(word2 + 1, probability2))); // ties by wn, like ProbabilityKey
             }
-            return String.format("%s %s", words1[0], words1[1]).compareTo(String.format("%s %s", words2[0], words2[1]));
+            return context1.compareTo(context2);
         }
     }
 
 
-    public static void main(String[] args) throws Exception {
-        Configuration conf = new Configuration();
-        Job job = Job.getInstance(conf);
+    // Sort with N reducers and a sampled TotalOrderPartitioner instead of a single reducer
+    public static final String TOTAL_ORDER = "step4.total-order";
+    // Number of (w1 w2) contexts sampled from the input to build the partition file
+    public static final String SAMPLES = "step4.total-order.samples";
+
+    /**
+     * Input:
+     * <w1 w2 w3, probability>
+     * <p>
+     * Output:
+     * <(w1 w2, probability, w3), probability>
+     */
+    private static class TotalOrderMap extends PruningMap<ProbabilityKey> {
+        private final ProbabilityKey outKey = new ProbabilityKey();
+
+        @Override
+        protected void write(Text trigram, double p, Text probability, Context context) throws IOException, InterruptedException {
+            outKey.set(trigram.getBytes(), 0, trigram.getLength(), p);
+            context.write(outKey, probability);
+        }
+    }
+
+    /**
+     * Input:
+     * <(w1 w2, probability, w3), probability>
+     * <p>
+     * Output:
+     * <w1 w2 w3, probability>
+     */
+    private static class TotalOrderReduce extends Reducer<ProbabilityKey, Text, Text, Text> {
+        private final Text trigram = new Text();
+        private TopK topK;
+        // Added to the Counter group on cleanup instead of once per 3-gram
+        private long pruned = 0;
+
+        @Override
+        protected void setup(Context context) {
+            topK = new TopK(context.getConfiguration());
+        }
+
+        @Override
+        protected void reduce(ProbabilityKey key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
+            for (Text probability : values) {
+                if (topK.next(key.getContext().getBytes(), key.getContext().getLength()))
+                    context.write(key.getTrigram(trigram), probability);
+                else
+                    pruned++;
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) {
+            context.getCounter(Counter.PRUNED_TRIGRAMS).increment(pruned);
+        }
+    }
+
+    private static int indexOf(byte[] bytes, int length, byte b) {
+        for (int i = 0; i < length; i++)
+            if (bytes[i] == b)
+                return i;
+        return length;
+    }
+
+    /**
+     * Samples (w1 w2) contexts from the input splits and writes numReduceTasks - 1 boundaries
+     * for the TotalOrderPartitioner. A boundary sorts before every 3-gram of its context, so all
+     * the 3-grams of a context land in the same part file.
+     * If there are fewer distinct contexts than reducers, the number of reducers is lowered.
+     */
+    private static void writePartitionFile(Job job, Path partitionFile) throws IOException, InterruptedException, ClassNotFoundException {
+        Configuration conf = job.getConfiguration();
+        InputFormat<?, ?> inputFormat = ReflectionUtils.newInstance(job.getInputFormatClass(), conf);
+        List<InputSplit> splits = inputFormat.getSplits(job);
+        int numSamples = conf.getInt(SAMPLES, 100000);
+        int splitsToSample = Math.min(splits.size(), 10 * job.getNumReduceTasks());
+        int samplesPerSplit = Math.max(1, numSamples / Math.max(1, splitsToSample));
+        List<Text> contexts = new ArrayList<>();
+        ProbabilityKey sample = new ProbabilityKey();
+        Vocabulary vocabulary = Vocabulary.isEnabled(conf) ? Vocabulary.load(conf, new Path(conf.get(Vocabulary.PATH))) : null;
+        Text decoded = new Text();
+        for (int i = 0; i < splitsToSample; i++) {
+            InputSplit split = splits.get(i * splits.size() / splitsToSample);
+            TaskAttemptContext samplingContext = new TaskAttemptContextImpl(conf, new TaskAttemptID());
+            RecordReader<?, ?> reader = inputFormat.createRecordReader(split, samplingContext);
+            reader.initialize(split, samplingContext);
+            for (int taken = 0; taken < samplesPerSplit && reader.nextKeyValue(); taken++) {
+                if (reader.getCurrentKey() instanceof Text) { // SequenceFile input - Key = <w1 w2 w3>
+                    Text trigram = (Text) reader.getCurrentKey();
+                    if (vocabulary != null)
+                        trigram = vocabulary.decode(trigram, decoded);
+                    sample.set(trigram.getBytes(), 0, trigram.getLength(), 0);
+                } else { // <w1 w2 w3 \t probability>
+                    Text line = (Text) reader.getCurrentValue();
+                    sample.set(line.getBytes(), 0, indexOf(line.getBytes(), line.getLength(), (byte) '\t'), 0);
+                }
+                contexts.add(new Text(sample.getContext()));
+            }
+            reader.close();
+        }
+        Collections.sort(contexts);
+
+        List<Text> boundaries = new ArrayList<>();
+        int numPartitions = job.getNumReduceTasks();
+        for (int i = 1; i < numPartitions && !contexts.isEmpty(); i++) {
+            Text candidate = contexts.get((int) ((long) i * contexts.size() / numPartitions));
+            if (candidate.getLength() > 0 && (boundaries.isEmpty() || boundaries.get(boundaries.size() - 1).compareTo(candidate) < 0))
+                boundaries.add(candidate);
+        }
+        job.setNumReduceTasks(boundaries.size() + 1);
+
+        SequenceFile.Writer writer = SequenceFile.createWriter(conf,
+                SequenceFile.Writer.file(partitionFile),
+                SequenceFile.Writer.keyClass(ProbabilityKey.class),
+                SequenceFile.Writer.valueClass(NullWritable.class));
+        ProbabilityKey boundary = new ProbabilityKey();
+        for (Text context : boundaries)
+            writer.append(boundary.setBoundary(context), NullWritable.get());
+        writer.close();
+        TotalOrderPartitioner.setPartitionFile(conf, partitionFile);
+    }
+
+    public static Job createJob(Configuration conf, Path input, Path output) throws IOException, InterruptedException, ClassNotFoundException {
+        Job job = Job.getInstance(conf, "Step4");
         job.setJarByClass(Step4.class);
         job.setOutputKeyClass(Text.class);
         job.setOutputValueClass(Text.class);
-        job.setMapperClass(Map.class);
-        job.setSortComparatorClass(Step4.Comparison.class);
-        job.setReducerClass(Reduce.class);
-        job.setPartitionerClass(Step4.Partition.class);
-        job.setNumReduceTasks(1);
-        job.setInputFormatClass(TextInputFormat.class);
-        job.setOutputFormatClass(TextOutputFormat.class);
-//        FileInputFormat.addInputPath(job, new Path("/home/spl211/IdeaProjects/MapReduceProject/output_step_33/part-r-00000"));
-        FileInputFormat.addInputPath(job, new Path("s3://bucket163897429777/output_step_33"));
-//        FileOutputFormat.setOutputPath(job, new Path("/home/spl211/IdeaProjects/MapReduceProject/output_step_44"));
-        FileOutputFormat.setOutputPath(job, new Path("s3://bucket163897429777/output_step_44"));
-        System.exit(job.waitForCompletion(true) ? 0 : 1);
+        IntermediateFormat.setInput(job);
+        job.setOutputFormatClass(IntermediateFormat.textOutputFormat(conf));
+        FileInputFormat.addInputPath(job, input);
+        FileOutputFormat.setOutputPath(job, output);
+        if (Vocabulary.isEnabled(conf))
+            Vocabulary.addCacheFile(job);
+        if (conf.getBoolean(TOTAL_ORDER, false)) {
+            job.setMapperClass(TotalOrderMap.class);
+            job.setReducerClass(TotalOrderReduce.class);
+            job.setMapOutputKeyClass(ProbabilityKey.class);
+            job.setMapOutputValueClass(Text.class);
+            job.setSortComparatorClass(ProbabilityKey.Comparator.class);
+            if (job.getNumReduceTasks() > 1) {
+                writePartitionFile(job, output.suffix("_partitions"));
+                job.setPartitionerClass(TotalOrderPartitioner.class);
+            }
+        } else {
+            job.setMapperClass(Map.class);
+            job.setSortComparatorClass(Step4.Comparison.class);
+            job.setReducerClass(Reduce.class);
+            job.setPartitionerClass(Step4.Partition.class);
+            job.setNumReduceTasks(1);
+        }
+        return job;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Pipeline.main("step4", args);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,112 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The stop words removed from the corpus - a 3-gram that contains one of them is ignored.
+ * <p>
+ * Kept in a byte trie, so a word can be looked up in the bytes of a line without decoding it.
+ */
+public class StopWords {
+    private static final String[] WORDS = {"a", "about", "above", "across", "after", "afterwards", "again", "against", "all", "almost",
+            "alone", "along", "already", "also", "although", "always", "am", "among", "amongst", "amoungst",
+            "amount", "an", "and", "another", "any", "anyhow", "anyone", "anything", "anyway", "anywhere", "are",
+            "around", "as", "at", "back", "be", "became", "because", "become", "becomes", "becoming", "been", "before",
+            "beforehand", "behind", "being", "below", "beside", "besides", "between", "beyond", "bill", "both",
+            "bottom", "but", "by", "call", "can", "cannot", "cant", "co", "computer", "con", "could", "couldnt", "cry",
+            "de", "describe", "detail", "do", "done", "down", "due", "during", "each", "eg", "eight", "either", "eleven",
+            "else", "elsewhere", "empty", "enough", "etc", "even", "ever", "every", "everyone", "everything", "everywhere",
+            "except", "few", "fifteen", "fify", "fill", "find", "fire", "first", "five", "for", "former", "formerly",
+            "forty", "found", "four", "from", "front", "full", "further", "get", "give", "go", "had", "has", "hasnt",
+            "have", "he", "hence", "her", "here", "hereafter", "hereby", "herein", "hereupon", "hers", "herself", "him",
+            "himself", "his", "how", "however", "hundred", "i", "ie", "if", "in", "inc", "indeed", "interest", "into", "is",
+            "it", "its", "itself", "keep", "last", "latter", "latterly", "least", "less", "ltd", "made", "many", "may", "me",
+            "meanwhile", "might", "mill", "mine", "more", "moreover", "most", "mostly", "move", "much", "must", "my", "myself",
+            "name", "namely", "neither", "never", "nevertheless", "next", "nine", "no", "nobody", "none", "noone", "nor",
+            "not", "nothing", "now", "nowhere", "of", "off", "often", "on", "once", "one", "only", "onto", "or", "other",
+            "others", "otherwise", "our", "ours", "ourselves", "out", "over", "own", "part", "per", "perhaps", "please",
+            "put", "rather", "re", "same", "see", "seem", "seemed", "seeming", "seems", "serious", "several",
+            "she", "should", "show", "side", "since", "sincere", "six", "sixty", "so", "some", "somehow",
+            "someone", "something", "sometime", "sometimes", "somewhere", "still", "such", "system",
+            "take", "ten", "than", "that", "the", "their", "them", "themselves", "then", "thence", "there",
+            "thereafter", "thereby", "therefore", "therein", "thereupon", "these", "they", "thick", "thin",
+            "third", "this", "those", "though", "three", "through", "throughout", "thru", "thus", "to",
+            "together", "too", "top", "toward", "towards", "twelve", "twenty", "two", "un", "under",
+            "until", "up", "upon", "us", "very", "via", "was", "we", "well", "were", "what", "whatever",
+            "when", "whence", "whenever", "where", "whereafter", "whereas", "whereby", "wherein",
+            "whereupon", "wherever", "whether", "which", "while", "whither", "who", "whoever", "whole",
+            "whom", "whose", "why", "will", "with", "within", "without", "would", "yet", "you", "your",
+            "yours", "yourself", "yourselves"};
+
+    // The children of node n are LABELS / CHILDREN [FIRST[n], FIRST[n + 1]), node 0 is the root
+    private static final int[] FIRST;
+    private static final byte[] LABELS;
+    private static final int[] CHILDREN;
+    private static final boolean[] TERMINAL;
+    private static final int MAX_LENGTH;
+
+    static {
+        List<TreeMap<Byte, Integer>> nodes = new ArrayList<>();
+        List<Boolean> terminal = new ArrayList<>();
+        nodes.add(new TreeMap<>());
+        terminal.add(false);
+        int maxLength = 0;
+        for (String word : WORDS) {
+            byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+            maxLength = Math.max(maxLength, bytes.length);
+            int node = 0;
+            for (byte b : bytes) {
+                Integer child = nodes.get(node).get(b);
+                if (child == null) {
+                    child = nodes.size();
+                    nodes.add(new TreeMap<>());
+                    terminal.add(false);
+                    nodes.get(node).put(b, child);
+                }
+                node = child;
+            }
+            terminal.set(node, true);
+        }
+        MAX_LENGTH = maxLength;
+        FIRST = new int[nodes.size() + 1];
+        LABELS = new byte[nodes.size() - 1];
+        CHILDREN = new int[nodes.size() - 1];
+        TERMINAL = new boolean[nodes.size()];
+        int edge = 0;
+        for (int node = 0; node < nodes.size(); node++) {
+            FIRST[node] = edge;
+            TERMINAL[node] = terminal.get(node);
+            for (Map.Entry<Byte, Integer> child : nodes.get(node).entrySet()) {
+                LABELS[edge] = child.getKey();
+                CHILDREN[edge++] = child.getValue();
+            }
+        }
+        FIRST[nodes.size()] = edge;
+    }
+
+    public static boolean contains(String word) {
+        byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+        return contains(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Looks up the UTF-8 word bytes[start, start + length).
+     */
+    public static boolean contains(byte[] bytes, int start, int length) {
+        if (length > MAX_LENGTH)
+            return false;
+        int node = 0;
+        for (int i = start; i < start + length; i++) {
+            int edge = FIRST[node];
+            int end = FIRST[node + 1];
+            while (edge < end && LABELS[edge] != bytes[i])
+                edge++;
+            if (edge == end)
+                return false;
+            node = CHILDREN[edge];
+        }
+        return TERMINAL[node];
+    }
+}
@@ -0,0 +1,199 @@
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Binary shuffle key used by Step2 and Step3 instead of the space separated Text keys.
+ * <p>
+ * Serialized layout: r (8 bytes, big endian) | tag (1 byte) | split (bit 0) and salt (bits 1 - 6) | trigram (Text)
+ * <p>
+ * Keys are sorted by r, then tag, then split, then trigram bytes, so for every r the
+ * statistics records (N, T, **) reach the reducer before the 3-grams of that r.
+ * toString() gives back the old text form, so the text output of the steps is unchanged.
+ */
+public class TaggedKey implements WritableComparable<TaggedKey> {
+
+    /**
+     * The order of the constants is the sort order of the records that share the same r.
+     */
+    public enum Tag {
+        TOTAL,   // <** **> - number of 3-grams in all the corpus
+        N,       // <N split r> - N_r_0 / N_r_1
+        T,       // <T split r> - T_r_01 / T_r_10
+        R,       // <** r> - marks an existing r
+        TRIGRAM, // <w1 w2 w3> with its r
+        SKETCH;  // <S cell> - a cell of the RSketch of a Step2 map task, r is the cell index
+
+        private static final Tag[] VALUES = values();
+
+        public static Tag of(int ordinal) {
+            return VALUES[ordinal];
+        }
+    }
+
+    // r of the TOTAL record, smaller than every real r so N always comes first
+    public static final long TOTAL_R = -1;
+    // Copies of a statistics record that can be told apart by the partitioner (Step3 skew-aware partitioning)
+    public static final int MAX_SALTS = 64;
+
+    private long r;
+    private Tag tag = Tag.TOTAL;
+    private byte split;
+    private byte salt;
+    private final Text trigram = new Text();
+
+    public TaggedKey() {
+    }
+
+    public TaggedKey set(Tag tag, int split, long r) {
+        this.tag = tag;
+        this.split = (byte) split;
+        this.salt = 0;
+        this.r = r;
+        this.trigram.clear();
+        return this;
+    }
+
+    public TaggedKey setTotal() {
+        return set(Tag.TOTAL, 0, TOTAL_R);
+    }
+
+    public TaggedKey setTrigram(long r, Text trigram) {
+        set(Tag.TRIGRAM, 0, r);
+        this.trigram.set(trigram);
+        return this;
+    }
+
+    public TaggedKey setTrigram(long r, byte[] utf8, int start, int len) {
+        set(Tag.TRIGRAM, 0, r);
+        this.trigram.set(utf8, start, len);
+        return this;
+    }
+
+    public Tag getTag() {
+        return tag;
+    }
+
+    public int getSplit() {
+        return split;
+    }
+
+    /**
+     * Marks a copy of a statistics record for the partitioner, the reducers ignore it.
+     */
+    public TaggedKey setSalt(int salt) {
+        if (salt < 0 || salt >= MAX_SALTS)
+            throw new IllegalArgumentException("salt must be in [0, " + MAX_SALTS + "): " + salt);
+        this.salt = (byte) salt;
+        return this;
+    }
+
+    public int getSalt() {
+        return salt;
+    }
+
+    public long getR() {
+        return r;
+    }
+
+    public Text getTrigram() {
+        return trigram;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeLong(r);
+        out.writeByte(tag.ordinal());
+        out.writeByte(split | salt << 1);
+        trigram.write(out);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        r = in.readLong();
+        tag = Tag.of(in.readByte());
+        byte splitAndSalt = in.readByte();
+        split = (byte) (splitAndSalt & 1);
+        salt = (byte) (splitAndSalt >> 1);
+        trigram.readFields(in);
+    }
+
+    @Override
+    public int compareTo(TaggedKey other) {
+        int cmp = Long.compare(r, other.r);
+        if (cmp != 0)
+            return cmp;
+        cmp = Integer.compare(tag.ordinal(), other.tag.ordinal());
+        if (cmp != 0)
+            return cmp;
+        cmp = Integer.compare(split | salt << 1, other.split | other.salt << 1);
+        if (cmp != 0)
+            return cmp;
+        return trigram.compareTo(other.trigram);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof TaggedKey && compareTo((TaggedKey) o) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        if (tag == Tag.TRIGRAM)
+            return trigram.hashCode();
+        return 31 * (31 * Long.hashCode(r) + tag.ordinal()) + split;
+    }
+
+    @Override
+    public String toString() {
+        switch (tag) {
+            case TOTAL:
+                return "** **";
+            case N:
+            case T:
+                return String.format("%s %d %d", tag.name(), split, r);
+            case R:
+                return String.format("** %d", r);
+            case SKETCH:
+                return String.format("S %d", r);
+            default:
+                return trigram.toString();
+        }
+    }
+
+    /**
+     * Compares two serialized keys without deserializing them.
+     */
+    public static class Comparator extends WritableComparator {
+        private static final int HEADER = 8 + 1 + 1; // r | tag | split and salt
+
+        public Comparator() {
+            super(TaggedKey.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            int cmp = Long.compare(readLong(b1, s1), readLong(b2, s2));
+            if (cmp != 0)
+                return cmp;
+            cmp = Integer.compare(b1[s1 + 8], b2[s2 + 8]); // tag
+            if (cmp != 0)
+                return cmp;
+            cmp = Integer.compare(b1[s1 + 9], b2[s2 + 9]); // split and salt
+            if (cmp != 0)
+                return cmp;
+            int n1 = WritableUtils.decodeVIntSize(b1[s1 + HEADER]);
+            int n2 = WritableUtils.decodeVIntSize(b2[s2 + HEADER]);
+            return compareBytes(b1, s1 + HEADER + n1, l1 - HEADER - n1, b2, s2 + HEADER + n2, l2 - HEADER - n2);
+        }
+    }
+
+    static {
+        WritableComparator.define(TaggedKey.class, new Comparator());
+    }
+}
@@ -0,0 +1,165 @@
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from a 3-gram (UTF-8 bytes) to its R0 and R1 counts.
+ * <p>
+ * The keys are copied into one byte arena and the counts are kept in primitive arrays,
+ * so adding a 3-gram allocates nothing once the arrays are large enough.
+ * Entries are numbered 0..size()-1 in insertion order.
+ */
+public class TrigramCounts {
+    private static final int ENTRY_BYTES = 4 + 4 + 4 + 8 + 8 + 8; // offset, length, hash, R0, R1, slot (load factor 1/2)
+
+    private int[] slots;      // entry + 1, 0 = empty
+    private int mask;
+    private int[] offsets;
+    private int[] lengths;
+    private int[] hashes;
+    private long[] R0;
+    private long[] R1;
+    private byte[] arena;
+    private int arenaSize;
+    private int size;
+
+    public TrigramCounts() {
+        this(1024);
+    }
+
+    public TrigramCounts(int expectedEntries) {
+        int capacity = Integer.highestOneBit(Math.max(16, expectedEntries) - 1) << 1;
+        slots = new int[capacity * 2];
+        mask = slots.length - 1;
+        offsets = new int[capacity];
+        lengths = new int[capacity];
+        hashes = new int[capacity];
+        R0 = new long[capacity];
+        R1 = new long[capacity];
+        arena = new byte[capacity * 16];
+    }
+
+    /**
+     * Adds occurrences to the given part (0 or 1) of the corpus.
+     */
+    public void add(byte[] bytes, int start, int len, int part, long occurrences) {
+        int entry = entry(bytes, start, len);
+        if (part == 0)
+            R0[entry] += occurrences;
+        else
+            R1[entry] += occurrences;
+    }
+
+    /**
+     * Finds or inserts the 3-gram and returns its entry number.
+     */
+    public int entry(byte[] bytes, int start, int len) {
+        int hash = WritableComparator.hashBytes(bytes, start, len);
+        int slot = mix(hash) & mask;
+        while (slots[slot] != 0) {
+            int entry = slots[slot] - 1;
+            if (hashes[entry] == hash && WritableComparator.compareBytes(arena, offsets[entry], lengths[entry], bytes, start, len) == 0)
+                return entry;
+            slot = (slot + 1) & mask;
+        }
+        if (size == offsets.length)
+            grow();
+        if (arenaSize + len > arena.length)
+            arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaSize + len));
+        System.arraycopy(bytes, start, arena, arenaSize, len);
+        int entry = size++;
+        offsets[entry] = arenaSize;
+        lengths[entry] = len;
+        hashes[entry] = hash;
+        R0[entry] = 0;
+        R1[entry] = 0;
+        arenaSize += len;
+        if (size * 2 > slots.length)
+            rehash();
+        else
+            slots[slot] = entry + 1;
+        return entry;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Text getTrigram(int entry, Text trigram) {
+        trigram.set(arena, offsets[entry], lengths[entry]);
+        return trigram;
+    }
+
+    public long getR0(int entry) {
+        return R0[entry];
+    }
+
+    public long getR1(int entry) {
+        return R1[entry];
+    }
+
+    public void addR0(int entry, long occurrences) {
+        R0[entry] += occurrences;
+    }
+
+    public void addR1(int entry, long occurrences) {
+        R1[entry] += occurrences;
+    }
+
+    /**
+     * Approximate heap size of the entries in bytes (0 after clear, the arrays grow up to twice as large).
+     */
+    public long memoryBytes() {
+        return (long) size * ENTRY_BYTES + arenaSize;
+    }
+
+    /**
+     * The byte arena of the keys - the 3-gram of an entry is at getStart(entry), getLength(entry).
+     */
+    public byte[] getBytes() {
+        return arena;
+    }
+
+    public int getStart(int entry) {
+        return offsets[entry];
+    }
+
+    public int getLength(int entry) {
+        return lengths[entry];
+    }
+
+    /**
+     * Removes all the entries but keeps the allocated arrays.
+     */
+    public void clear() {
+        Arrays.fill(slots, 0);
+        size = 0;
+        arenaSize = 0;
+    }
+
+    private void grow() {
+        int capacity = offsets.length * 2;
+        offsets = Arrays.copyOf(offsets, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+        R0 = Arrays.copyOf(R0, capacity);
+        R1 = Arrays.copyOf(R1, capacity);
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        mask = slots.length - 1;
+        for (int entry = 0; entry < size; entry++) {
+            int slot = mix(hashes[entry]) & mask;
+            while (slots[slot] != 0)
+                slot = (slot + 1) & mask;
+            slots[slot] = entry + 1;
+        }
+    }
+
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
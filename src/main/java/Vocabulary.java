@@ -0,0 +1,240 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.util.LineReader;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Dense int ids of the words of the corpus, the most frequent word gets id 0.
+ * <p>
+ * When PATH is set, Step1 writes every 3-gram as the three ids of its words (unsigned varints,
+ * 1 byte for the 128 most frequent words) instead of "w1 w2 w3", the encoded 3-grams are carried
+ * unchanged by Step2 and Step3, and Step4 decodes them back to words in the final output.
+ * The encoded bytes are binary, so it requires the sequence intermediate format.
+ * <p>
+ * File format (written by Step0): <word \t occurrences> lines, the line number is the id.
+ */
+public class Vocabulary {
+    // Vocabulary file written by Step0, the 3-grams are dictionary encoded when it is set
+    public static final String PATH = "pipeline.vocabulary";
+
+    private static final byte[] SPACE = {' '};
+
+    private int[] slots;   // id + 1, 0 = empty
+    private int mask;
+    private int[] offsets = new int[1025];
+    private int[] hashes = new int[1024];
+    private byte[] arena = new byte[16 * 1024];
+    private int size;
+    private final byte[] varint = new byte[5];
+
+    public Vocabulary() {
+        slots = new int[2048];
+        mask = slots.length - 1;
+    }
+
+    public static boolean isEnabled(Configuration conf) {
+        if (conf.get(PATH) == null)
+            return false;
+        if (!IntermediateFormat.isSequence(conf))
+            throw new IllegalArgumentException(PATH + " requires " + IntermediateFormat.FORMAT + "=sequence");
+        return true;
+    }
+
+    /**
+     * Ships the vocabulary file of the configuration to the tasks of the job.
+     */
+    public static void addCacheFile(Job job) throws IOException {
+        Configuration conf = job.getConfiguration();
+        Path path = new Path(conf.get(PATH));
+        job.addCacheFile(path.getFileSystem(conf).makeQualified(path).toUri());
+    }
+
+    /**
+     * Loads the vocabulary from the distributed cache of a task.
+     */
+    public static Vocabulary fromCache(JobContext context) throws IOException {
+        Configuration conf = context.getConfiguration();
+        String name = new Path(conf.get(PATH)).getName();
+        URI[] files = context.getCacheFiles();
+        if (files != null)
+            for (URI file : files)
+                if (new Path(file).getName().equals(name))
+                    return load(conf, new Path(file));
+        return load(conf, new Path(conf.get(PATH)));
+    }
+
+    public static Vocabulary load(Configuration conf, Path path) throws IOException {
+        Vocabulary vocabulary = new Vocabulary();
+        try (InputStream in = path.getFileSystem(conf).open(path)) {
+            LineReader reader = new LineReader(in, conf);
+            Text line = new Text();
+            while (reader.readLine(line) > 0) {
+                int tab = 0;
+                while (tab < line.getLength() && line.getBytes()[tab] != '\t')
+                    tab++;
+                vocabulary.add(line.getBytes(), 0, tab);
+            }
+        }
+        return vocabulary;
+    }
+
+    /**
+     * Sorts the <word \t occurrences> lines of the Step0 output by occurrences (then by word)
+     * and writes them to the vocabulary file.
+     */
+    public static void write(Configuration conf, Path counts, Path vocabulary) throws IOException {
+        List<String> words = new ArrayList<>();
+        List<Long> occurrences = new ArrayList<>();
+        FileSystem fs = counts.getFileSystem(conf);
+        Text line = new Text();
+        for (FileStatus status : fs.listStatus(counts)) {
+            String name = status.getPath().getName();
+            if (status.isDirectory() || name.startsWith("_") || name.startsWith("."))
+                continue;
+            try (InputStream in = fs.open(status.getPath())) {
+                LineReader reader = new LineReader(in, conf);
+                while (reader.readLine(line) > 0) {
+                    String[] keyValue = line.toString().split("\t");
+                    words.add(keyValue[0]);
+                    occurrences.add(Long.parseLong(keyValue[1]));
+                }
+            }
+        }
+        Integer[] order = new Integer[words.size()];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> {
+            int cmp = Long.compare(occurrences.get(b), occurrences.get(a));
+            return cmp != 0 ? cmp : words.get(a).compareTo(words.get(b));
+        });
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(vocabulary.getFileSystem(conf).create(vocabulary, true), StandardCharsets.UTF_8))) {
+            for (int i : order)
+                out.write(words.get(i) + "\t" + occurrences.get(i) + "\n");
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds a word (if it is new) and returns its id.
+     */
+    public int add(byte[] bytes, int start, int len) {
+        int hash = WritableComparator.hashBytes(bytes, start, len);
+        int slot = find(hash, bytes, start, len);
+        if (slots[slot] != 0)
+            return slots[slot] - 1;
+        if (size == hashes.length) {
+            hashes = Arrays.copyOf(hashes, size * 2);
+            offsets = Arrays.copyOf(offsets, size * 2 + 1);
+        }
+        int end = offsets[size];
+        if (end + len > arena.length)
+            arena = Arrays.copyOf(arena, Math.max(arena.length * 2, end + len));
+        System.arraycopy(bytes, start, arena, end, len);
+        hashes[size] = hash;
+        offsets[size + 1] = end + len;
+        slots[slot] = ++size;
+        if (size * 2 > slots.length)
+            rehash();
+        return size - 1;
+    }
+
+    /**
+     * @return the id of the word, or -1 if it is not in the vocabulary
+     */
+    public int id(byte[] bytes, int start, int len) {
+        return slots[find(WritableComparator.hashBytes(bytes, start, len), bytes, start, len)] - 1;
+    }
+
+    /**
+     * Encodes "w1 w2 w3" as the varint ids of its words.
+     *
+     * @return false if one of the words is not in the vocabulary
+     */
+    public boolean encode(Text trigram, Text encoded) {
+        byte[] bytes = trigram.getBytes();
+        int length = trigram.getLength();
+        encoded.clear();
+        for (int start = 0; start <= length; ) {
+            int end = start;
+            while (end < length && bytes[end] != ' ')
+                end++;
+            int id = id(bytes, start, end - start);
+            if (id < 0)
+                return false;
+            int n = 0;
+            for (; (id & ~0x7F) != 0; id >>>= 7)
+                varint[n++] = (byte) (id & 0x7F | 0x80);
+            varint[n++] = (byte) id;
+            encoded.append(varint, 0, n);
+            start = end + 1;
+        }
+        return true;
+    }
+
+    /**
+     * Decodes the varint ids written by encode back to "w1 w2 w3".
+     */
+    public Text decode(Text encoded, Text trigram) {
+        byte[] bytes = encoded.getBytes();
+        trigram.clear();
+        for (int i = 0; i < encoded.getLength(); ) {
+            int id = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = bytes[i++];
+                id |= (b & 0x7F) << shift;
+                if (b >= 0)
+                    break;
+            }
+            if (trigram.getLength() > 0)
+                trigram.append(SPACE, 0, 1);
+            trigram.append(arena, offsets[id], offsets[id + 1] - offsets[id]);
+        }
+        return trigram;
+    }
+
+    private int find(int hash, byte[] bytes, int start, int len) {
+        int slot = mix(hash) & mask;
+        while (slots[slot] != 0) {
+            int id = slots[slot] - 1;
+            if (hashes[id] == hash && WritableComparator.compareBytes(arena, offsets[id], offsets[id + 1] - offsets[id], bytes, start, len) == 0)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        mask = slots.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = mix(hashes[id]) & mask;
+            while (slots[slot] != 0)
+                slot = (slot + 1) & mask;
+            slots[slot] = id + 1;
+        }
+    }
+
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}